@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator.IndexType;
+import com.floragunn.searchguard.user.User;
+
+/**
+ * Synthetic cluster, configuration and users for the interceptor benchmarks
+ */
+final class BenchmarkSupport {
+
+    static final String KIBANA_INDEX = ".kibana";
+    static final String TENANT = "human_resources";
+    static final Set<String> KIBANA_ONLY = Collections.singleton(KIBANA_INDEX);
+
+    static final Settings CONFIG = Settings.builder()
+            .put("searchguard.dynamic.kibana.multitenancy_enabled", true)
+            .put("searchguard.dynamic.kibana.do_not_fail_on_forbidden", true)
+            .put("searchguard.dynamic.kibana.index", KIBANA_INDEX)
+            .build();
+
+    private BenchmarkSupport() {
+    }
+
+    static ClusterState clusterState(final int dataIndices) {
+        final String[] indices = new String[dataIndices + 2];
+        indices[0] = KIBANA_INDEX;
+        indices[1] = TenantIndexNameCache.compute(KIBANA_INDEX, TENANT);
+
+        for (int i = 0; i < dataIndices; i++) {
+            indices[i + 2] = String.format("logs-%05d", i);
+        }
+
+        return ClusterStates.of(indices);
+    }
+
+    static PrivilegesInterceptorImpl interceptor(final ClusterState state) {
+        final ClusterService clusterService = new ClusterService(Settings.EMPTY,
+                new ClusterSettings(Settings.EMPTY, ClusterSettings.BUILT_IN_CLUSTER_SETTINGS), null, Collections.emptyMap()) {
+            @Override
+            public ClusterState state() {
+                return state;
+            }
+        };
+        return new PrivilegesInterceptorImpl(new IndexNameExpressionResolver(Settings.EMPTY), clusterService, null, null);
+    }
+
+    static User user(final String name, final String requestedTenant) {
+        final User user = new User(name);
+        user.setRequestedTenant(requestedTenant);
+        return user;
+    }
+
+    static Map<String, Boolean> tenants(final int count) {
+        final Map<String, Boolean> tenants = new HashMap<>();
+        tenants.put(TENANT, Boolean.TRUE);
+
+        for (int i = 0; i < count; i++) {
+            tenants.put("tenant_" + i, (i % 2) == 0);
+        }
+
+        return tenants;
+    }
+
+    /**
+     * @return leftovers of one role which is not allowed to read every second data index
+     */
+    static Map<String, Set<IndexType>> leftOvers(final int dataIndices) {
+        final Set<IndexType> leftOvers = new HashSet<>();
+
+        for (int i = 0; i < dataIndices; i += 2) {
+            leftOvers.add(new IndexType(String.format("logs-%05d", i), "*"));
+        }
+
+        return Collections.singletonMap("sg_role", leftOvers);
+    }
+}
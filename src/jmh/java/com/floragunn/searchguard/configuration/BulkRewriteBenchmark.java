@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.floragunn.searchguard.user.User;
+
+/**
+ * Rewriting of saved object imports with mixed index, update and delete items into a tenant index
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkRewriteBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int bulkSize;
+
+    private PrivilegesInterceptorImpl interceptor;
+    private User user;
+    private Map<String, Boolean> tenants;
+    private BulkRequest bulkRequest;
+
+    @Setup
+    public void setup() {
+        interceptor = BenchmarkSupport.interceptor(BenchmarkSupport.clusterState(100));
+        user = BenchmarkSupport.user("hr_employee", BenchmarkSupport.TENANT);
+        tenants = BenchmarkSupport.tenants(100);
+
+        bulkRequest = new BulkRequest();
+        for (int i = 0; i < bulkSize; i++) {
+            switch (i % 3) {
+            case 0:
+                bulkRequest.add(new IndexRequest(BenchmarkSupport.KIBANA_INDEX, "doc", "visualization:" + i)
+                        .source("{\"type\":\"visualization\"}", XContentType.JSON));
+                break;
+            case 1:
+                bulkRequest.add(new UpdateRequest(BenchmarkSupport.KIBANA_INDEX, "doc", "dashboard:" + i)
+                        .doc("{\"type\":\"dashboard\"}", XContentType.JSON));
+                break;
+            default:
+                bulkRequest.add(new DeleteRequest(BenchmarkSupport.KIBANA_INDEX, "doc", "search:" + i));
+            }
+        }
+    }
+
+    @Benchmark
+    public Boolean replaceKibanaIndexBulk() {
+        return interceptor.replaceKibanaIndex(bulkRequest, "indices:data/write/bulk", user, BenchmarkSupport.CONFIG, BenchmarkSupport.KIBANA_ONLY, tenants);
+    }
+}
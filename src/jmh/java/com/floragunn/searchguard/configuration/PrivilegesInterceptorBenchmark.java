@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator.IndexType;
+import com.floragunn.searchguard.user.User;
+
+/**
+ * Throughput of the interceptor hot paths, see {@link BulkRewriteBenchmark} for bulk requests. Run with <code>-prof gc</code> to get the allocation rate.
+ * <p>
+ * Rewriting a request to a tenant index is idempotent, so the kibana requests are built once. The requests
+ * reduced by replaceAllowedIndices are modified in place and are therefore built per invocation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrivilegesInterceptorBenchmark {
+
+    @Param({ "8000" })
+    public int dataIndices;
+
+    private PrivilegesInterceptorImpl interceptor;
+    private User user;
+    private Map<String, Boolean> tenants;
+    private Map<String, Set<IndexType>> leftOvers;
+    private MultitenancyConfig mtConfig;
+
+    private GetRequest getRequest;
+    private IndexRequest indexRequest;
+    private MultiSearchRequest multiSearchRequest;
+    private MultiGetRequest multiGetRequest;
+
+    @Setup
+    public void setup() {
+        interceptor = BenchmarkSupport.interceptor(BenchmarkSupport.clusterState(dataIndices));
+        user = BenchmarkSupport.user("hr_employee", BenchmarkSupport.TENANT);
+        tenants = BenchmarkSupport.tenants(100);
+        leftOvers = BenchmarkSupport.leftOvers(dataIndices);
+        mtConfig = MultitenancyConfig.of(BenchmarkSupport.CONFIG);
+
+        getRequest = new GetRequest(BenchmarkSupport.KIBANA_INDEX, "doc", "config:6.1.0");
+        indexRequest = new IndexRequest(BenchmarkSupport.KIBANA_INDEX, "doc", "config:6.1.0")
+                .source("{\"type\":\"config\",\"config\":{\"buildNum\":16350}}", XContentType.JSON);
+
+        multiSearchRequest = new MultiSearchRequest();
+        for (int i = 0; i < 100; i++) {
+            multiSearchRequest.add(new SearchRequest(BenchmarkSupport.KIBANA_INDEX));
+        }
+
+        multiGetRequest = new MultiGetRequest();
+        for (int i = 0; i < 100; i++) {
+            multiGetRequest.add(BenchmarkSupport.KIBANA_INDEX, "doc", "index-pattern:" + i);
+        }
+    }
+
+    @Benchmark
+    public Boolean replaceKibanaIndexGet() {
+        return interceptor.replaceKibanaIndex(getRequest, "indices:data/read/get", user, BenchmarkSupport.CONFIG, BenchmarkSupport.KIBANA_ONLY, tenants);
+    }
+
+    @Benchmark
+    public Boolean replaceKibanaIndexIndex() {
+        return interceptor.replaceKibanaIndex(indexRequest, "indices:data/write/index", user, BenchmarkSupport.CONFIG, BenchmarkSupport.KIBANA_ONLY, tenants);
+    }
+
+    @Benchmark
+    public Boolean replaceKibanaIndexMultiSearch100() {
+        return interceptor.replaceKibanaIndex(multiSearchRequest, "indices:data/read/msearch", user, BenchmarkSupport.CONFIG, BenchmarkSupport.KIBANA_ONLY, tenants);
+    }
+
+    @Benchmark
+    public Boolean replaceKibanaIndexMultiGet100() {
+        return interceptor.replaceKibanaIndex(multiGetRequest, "indices:data/read/mget", user, BenchmarkSupport.CONFIG, BenchmarkSupport.KIBANA_ONLY, tenants);
+    }
+
+    @Benchmark
+    public boolean replaceAllowedIndicesSearch() {
+        return interceptor.replaceAllowedIndices(new SearchRequest("logs-*"), "indices:data/read/search", user, BenchmarkSupport.CONFIG, leftOvers);
+    }
+
+    @Benchmark
+    public boolean replaceAllowedIndicesMultiSearch100() {
+        final MultiSearchRequest request = new MultiSearchRequest();
+        for (int i = 0; i < 100; i++) {
+            request.add(new SearchRequest(i % 2 == 0 ? "logs-*" : "logs-0*"));
+        }
+        return interceptor.replaceAllowedIndices(request, "indices:data/read/msearch", user, BenchmarkSupport.CONFIG, leftOvers);
+    }
+
+    @Benchmark
+    public boolean replaceAllowedIndicesMultiGet100() {
+        final MultiGetRequest request = new MultiGetRequest();
+        for (int i = 0; i < 100; i++) {
+            request.add("logs-*", "doc", String.valueOf(i));
+        }
+        return interceptor.replaceAllowedIndices(request, "indices:data/read/mget", user, BenchmarkSupport.CONFIG, leftOvers);
+    }
+
+    @Benchmark
+    public String toUserIndexName() {
+        return mtConfig.toUserIndexName(BenchmarkSupport.TENANT);
+    }
+
+    @Benchmark
+    public String toUserIndexNameUncached() {
+        return TenantIndexNameCache.compute(BenchmarkSupport.KIBANA_INDEX, BenchmarkSupport.TENANT);
+    }
+}
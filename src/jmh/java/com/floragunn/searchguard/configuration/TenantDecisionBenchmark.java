@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.floragunn.searchguard.user.User;
+
+/**
+ * The tenant decision for requests which already target the tenant index.
+ * Run with <code>-prof gc</code>, gc.alloc.rate.norm is expected to be (close to) zero bytes per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TenantDecisionBenchmark {
+
+    private PrivilegesInterceptorImpl interceptor;
+    private User user;
+    private Map<String, Boolean> tenants;
+    private Set<String> tenantIndexOnly;
+    private GetRequest getRequest;
+    private IndexRequest indexRequest;
+
+    @Setup
+    public void setup() {
+        interceptor = BenchmarkSupport.interceptor(BenchmarkSupport.clusterState(100));
+        user = BenchmarkSupport.user("hr_employee", BenchmarkSupport.TENANT);
+        tenants = BenchmarkSupport.tenants(1000);
+
+        final String tenantIndex = TenantIndexNameCache.compute(BenchmarkSupport.KIBANA_INDEX, BenchmarkSupport.TENANT);
+        tenantIndexOnly = Collections.singleton(tenantIndex);
+        getRequest = new GetRequest(tenantIndex, "doc", "config:6.1.0");
+        indexRequest = new IndexRequest(tenantIndex, "doc", "config:6.1.0").source("{\"type\":\"config\"}", XContentType.JSON);
+    }
+
+    @Benchmark
+    public Boolean read() {
+        return interceptor.replaceKibanaIndex(getRequest, "indices:data/read/get", user, BenchmarkSupport.CONFIG, tenantIndexOnly, tenants);
+    }
+
+    @Benchmark
+    public Boolean write() {
+        return interceptor.replaceKibanaIndex(indexRequest, "indices:data/write/index", user, BenchmarkSupport.CONFIG, tenantIndexOnly, tenants);
+    }
+
+    @Benchmark
+    public ActionCategory classifyAction() {
+        return ActionCategory.of("indices:data/write/bulk[s]");
+    }
+}
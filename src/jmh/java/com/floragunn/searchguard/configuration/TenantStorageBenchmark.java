@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cluster state cost of one index per tenant compared to one shared tenant index.
+ * <p>
+ * The serialized size of the cluster state is reported as the secondary result <code>serializedBytes</code>
+ * of {@link #serializeClusterState(Size)}. Run with <code>-prof gc</code>,
+ * gc.alloc.rate.norm of {@link #buildClusterState()} approximates the heap held by the index metadata.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TenantStorageBenchmark {
+
+    private static final int SHARED_INDEX_SHARDS = 5;
+
+    @Param({ "1000", "10000", "50000" })
+    public int tenants;
+
+    @Param({ "index", "shared" })
+    public String storage;
+
+    private ClusterState state;
+
+    /**
+     * Size of the serialized cluster state, reported next to the time of {@link TenantStorageBenchmark#serializeClusterState(Size)}
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Size {
+        public long serializedBytes;
+    }
+
+    @Setup
+    public void setup() {
+        state = buildClusterState();
+    }
+
+    @Benchmark
+    public ClusterState buildClusterState() {
+        final MetaData.Builder metaData = MetaData.builder();
+        addIndex(metaData, BenchmarkSupport.KIBANA_INDEX, 1);
+
+        if ("shared".equals(storage)) {
+            addIndex(metaData, BenchmarkSupport.KIBANA_INDEX + "-tenants", SHARED_INDEX_SHARDS);
+        } else {
+            for (int i = 0; i < tenants; i++) {
+                addIndex(metaData, TenantIndexNameCache.compute(BenchmarkSupport.KIBANA_INDEX, "tenant_" + i), 1);
+            }
+        }
+
+        return ClusterStates.of(metaData);
+    }
+
+    @Benchmark
+    public int serializeClusterState(final Size size) throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            state.writeTo(out);
+            size.serializedBytes = out.size();
+            return out.size();
+        }
+    }
+
+    private static void addIndex(final MetaData.Builder metaData, final String index, final int shards) {
+        metaData.put(ClusterStates.index(index, Settings.builder().put(IndexMetaData.SETTING_AUTO_EXPAND_REPLICAS, "0-1").build())
+                .numberOfShards(shards)
+                .numberOfReplicas(1));
+    }
+}
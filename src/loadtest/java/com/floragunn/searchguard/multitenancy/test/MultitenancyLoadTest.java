@@ -0,0 +1,368 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.multitenancy.test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.test.DynamicSgConfig;
+import com.floragunn.searchguard.test.SingleClusterTest;
+import com.floragunn.searchguard.test.helper.rest.RestHelper;
+import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
+
+/**
+ * Concurrent load on the embedded cluster with a Kibana like request mix of several tenants and users.
+ * <p>
+ * Run with <code>mvn -Ploadtest test</code>. The load can be tuned with the system properties
+ * <ul>
+ * <li><code>loadtest.tenants</code> number of tenants (default 8)</li>
+ * <li><code>loadtest.users</code> users per tenant, each one is a concurrent virtual user (default 4)</li>
+ * <li><code>loadtest.private_percent</code> percentage of the requests of a user to its private tenant (default 25)</li>
+ * <li><code>loadtest.duration</code> measured seconds (default 30) after <code>loadtest.warmup</code> seconds (default 5)</li>
+ * <li><code>loadtest.seed</code> seed of the request mix (default 42)</li>
+ * <li><code>loadtest.results</code> file the results are written to in addition to the log (default none)</li>
+ * </ul>
+ * Users, roles and role mappings are generated for the run: every tenant gets a role which grants it read-write
+ * and is mapped to the users of the tenant. Every request with an unexpected status, including each request of
+ * a login and failed items of msearch and bulk responses, counts as an error of its operation.
+ */
+public class MultitenancyLoadTest extends SingleClusterTest {
+
+    private static final String KIBANA_VERSION = "6.1.0";
+    private static final String PASSWORD = "loadtest";
+    private static final String PRIVATE_TENANT = "__user__";
+    private static final Logger log = LogManager.getLogger(MultitenancyLoadTest.class);
+
+    private enum Operation {
+        LOGIN(15), DASHBOARD_MSEARCH(40), CONFIG_GET(40), SAVED_OBJECTS_BULK_IMPORT(5);
+
+        private final int weight;
+
+        Operation(final int weight) {
+            this.weight = weight;
+        }
+
+        static Operation pick(final Random random) {
+            int value = random.nextInt(100);
+
+            for (Operation operation : values()) {
+                value -= operation.weight;
+                if (value < 0) {
+                    return operation;
+                }
+            }
+
+            return CONFIG_GET;
+        }
+    }
+
+    /**
+     * Latencies of one virtual user by operation and tenant kind, merged after the run
+     */
+    private static final class Recorder {
+        private final Map<String, long[]> latencies = new HashMap<>();
+        private final Map<String, Integer> counts = new HashMap<>();
+        private final Map<String, Integer> errors = new HashMap<>();
+
+        void record(final String operation, final long nanos, final boolean error) {
+            final int count = counts.getOrDefault(operation, 0);
+            long[] values = latencies.computeIfAbsent(operation, k -> new long[1024]);
+
+            if (count == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+                latencies.put(operation, values);
+            }
+
+            values[count] = nanos;
+            counts.put(operation, count + 1);
+
+            if (error) {
+                errors.merge(operation, 1, Integer::sum);
+            }
+        }
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        final int tenants = Integer.getInteger("loadtest.tenants", 8);
+        final int usersPerTenant = Integer.getInteger("loadtest.users", 4);
+        final int privatePercent = Integer.getInteger("loadtest.private_percent", 25);
+        final long warmupNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("loadtest.warmup", 5));
+        final long durationNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("loadtest.duration", 30));
+        final long seed = Long.getLong("loadtest.seed", 42);
+
+        setup(Settings.EMPTY, generateSgConfig(tenants, usersPerTenant), Settings.EMPTY);
+        final RestHelper rh = nonSslRestHelper();
+
+        //the first write creates the tenant index, do that before the clock starts
+        for (int t = 0; t < tenants; t++) {
+            HttpResponse res = rh.executePutRequest(".kibana/doc/config:" + KIBANA_VERSION, config(tenant(t)), headers(tenant(t), username(t, 0)));
+            Assert.assertTrue(res.getBody(), res.getStatusCode() < 300);
+
+            for (int u = 0; privatePercent > 0 && u < usersPerTenant; u++) {
+                res = rh.executePutRequest(".kibana/doc/config:" + KIBANA_VERSION, config(PRIVATE_TENANT), headers(PRIVATE_TENANT, username(t, u)));
+                Assert.assertTrue(res.getBody(), res.getStatusCode() < 300);
+            }
+        }
+
+        final int virtualUsers = tenants * usersPerTenant;
+        final ExecutorService executor = Executors.newFixedThreadPool(virtualUsers);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final List<Future<Recorder>> results = new ArrayList<>(virtualUsers);
+
+        for (int i = 0; i < virtualUsers; i++) {
+            final String tenant = tenant(i % tenants);
+            final String username = username(i % tenants, i / tenants);
+            final Random random = new Random(seed + i);
+
+            results.add(executor.submit(() -> {
+                final Recorder recorder = new Recorder();
+                startSignal.await();
+                final long start = System.nanoTime();
+                final long measureFrom = start + warmupNanos;
+                final long end = measureFrom + durationNanos;
+                long now;
+
+                while ((now = System.nanoTime()) < end) {
+                    final Operation operation = Operation.pick(random);
+                    final boolean privateTenant = random.nextInt(100) < privatePercent;
+                    final boolean error = execute(rh, operation, privateTenant ? PRIVATE_TENANT : tenant, username, random);
+                    final long took = System.nanoTime() - now;
+
+                    if (now >= measureFrom) {
+                        recorder.record(operation.name().toLowerCase(Locale.ROOT) + (privateTenant ? " (private)" : ""), took, error);
+                    }
+                }
+
+                return recorder;
+            }));
+        }
+
+        startSignal.countDown();
+        final List<Recorder> recorders = new ArrayList<>(virtualUsers);
+
+        for (Future<Recorder> result : results) {
+            recorders.add(result.get());
+        }
+
+        executor.shutdown();
+
+        final int totalErrors = report(recorders, tenants, usersPerTenant, durationNanos, System.getProperty("loadtest.results"));
+        Assert.assertEquals("requests failed", 0, totalErrors);
+    }
+
+    /**
+     * Writes internal users, roles and role mappings for the given number of tenants and users into the
+     * test classpath, where the test cluster reads its Search Guard configuration from
+     */
+    private static DynamicSgConfig generateSgConfig(final int tenants, final int usersPerTenant) throws Exception {
+        final String hash = OpenBSDBCrypt.generate(PASSWORD.toCharArray(), new SecureRandom().generateSeed(16), 12);
+        final StringBuilder users = new StringBuilder();
+        final StringBuilder roles = new StringBuilder();
+        final StringBuilder rolesMapping = new StringBuilder();
+
+        for (int t = 0; t < tenants; t++) {
+            roles.append("sg_loadtest_").append(t).append(":\n")
+                    .append("  cluster:\n")
+                    .append("    - CLUSTER_COMPOSITE_OPS\n")
+                    .append("  indices:\n")
+                    .append("    '?kibana':\n")
+                    .append("      '*':\n")
+                    .append("        - ALL\n")
+                    .append("  tenants:\n")
+                    .append("    ").append(tenant(t)).append(": RW\n");
+            rolesMapping.append("sg_loadtest_").append(t).append(":\n")
+                    .append("  users:\n");
+
+            for (int u = 0; u < usersPerTenant; u++) {
+                users.append(username(t, u)).append(":\n")
+                        .append("  hash: ").append(hash).append("\n");
+                rolesMapping.append("    - ").append(username(t, u)).append("\n");
+            }
+        }
+
+        final Path dir = Paths.get(MultitenancyLoadTest.class.getClassLoader().getResource("sg_config.yml").toURI()).getParent();
+        Files.write(dir.resolve("sg_internal_users_loadtest.yml"), users.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("sg_roles_loadtest.yml"), roles.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("sg_roles_mapping_loadtest.yml"), rolesMapping.toString().getBytes(StandardCharsets.UTF_8));
+
+        return new DynamicSgConfig()
+                .setSgInternalUsers("sg_internal_users_loadtest.yml")
+                .setSgRoles("sg_roles_loadtest.yml")
+                .setSgRolesMapping("sg_roles_mapping_loadtest.yml");
+    }
+
+    private static String tenant(final int tenant) {
+        return "loadtest_" + tenant;
+    }
+
+    private static String username(final int tenant, final int user) {
+        return "loadtest_" + tenant + "_" + user;
+    }
+
+    /**
+     * @return true if a request of the operation got an unexpected response
+     */
+    private boolean execute(final RestHelper rh, final Operation operation, final String tenant, final String username, final Random random)
+            throws Exception {
+        final Header[] headers = headers(tenant, username);
+        HttpResponse res;
+
+        switch (operation) {
+        case LOGIN:
+            //kibana checks the config document and loads the index patterns after login
+            res = rh.executeGetRequest(".kibana/doc/config:" + KIBANA_VERSION, headers);
+
+            if (isUnexpected(res)) {
+                return true;
+            }
+
+            res = rh.executePostRequest(".kibana/_search", "{\"size\":100,\"query\":{\"term\":{\"type\":\"index-pattern\"}}}", headers);
+            break;
+        case DASHBOARD_MSEARCH:
+            final StringBuilder msearch = new StringBuilder();
+            final int panels = 2 + random.nextInt(4);
+
+            for (int i = 0; i < panels; i++) {
+                msearch.append("{\"index\":\".kibana\"}\n");
+                msearch.append("{\"size\":20,\"query\":{\"term\":{\"type\":\"visualization\"}}}\n");
+            }
+
+            res = rh.executePostRequest("_msearch", msearch.toString(), headers);
+            //failed searches are reported per response item
+            return isUnexpected(res) || res.getBody().contains("\"error\"");
+        case SAVED_OBJECTS_BULK_IMPORT:
+            final StringBuilder bulk = new StringBuilder();
+
+            for (int i = 0; i < 20; i++) {
+                bulk.append("{\"index\":{\"_index\":\".kibana\",\"_type\":\"doc\",\"_id\":\"visualization:").append(random.nextInt(200)).append("\"}}\n");
+                bulk.append("{\"type\":\"visualization\",\"visualization\":{\"title\":\"panel ").append(i).append("\"}}\n");
+            }
+
+            res = rh.executePostRequest("_bulk", bulk.toString(), headers);
+            return isUnexpected(res) || !res.getBody().contains("\"errors\":false");
+        default:
+            res = rh.executeGetRequest(".kibana/doc/config:" + KIBANA_VERSION, headers);
+            break;
+        }
+
+        return isUnexpected(res);
+    }
+
+    /**
+     * All documents are created before the run, so every operation expects 200
+     */
+    private static boolean isUnexpected(final HttpResponse res) {
+        return res.getStatusCode() != 200;
+    }
+
+    private static int report(final List<Recorder> recorders, final int tenants, final int usersPerTenant, final long durationNanos,
+            final String resultsFile) throws IOException {
+        final double seconds = durationNanos / 1e9;
+        final List<String> lines = new ArrayList<>();
+        int totalCount = 0;
+        int totalErrors = 0;
+
+        lines.add(String.format(Locale.ROOT, "Multitenancy load test: %d tenants x %d users, %.0fs", tenants, usersPerTenant, seconds));
+        lines.add(String.format(Locale.ROOT, "%-36s %8s %7s %10s %10s %10s %10s", "operation", "count", "errors", "ops/s", "p50 ms",
+                "p99 ms", "p999 ms"));
+
+        final Set<String> operations = new TreeSet<>();
+
+        for (Recorder recorder : recorders) {
+            operations.addAll(recorder.counts.keySet());
+        }
+
+        for (String operation : operations) {
+            long[] merged = new long[0];
+            int errors = 0;
+
+            for (Recorder recorder : recorders) {
+                final int count = recorder.counts.getOrDefault(operation, 0);
+                final int offset = merged.length;
+                merged = Arrays.copyOf(merged, offset + count);
+                System.arraycopy(recorder.latencies.getOrDefault(operation, new long[0]), 0, merged, offset, count);
+                errors += recorder.errors.getOrDefault(operation, 0);
+            }
+
+            Arrays.sort(merged);
+            totalCount += merged.length;
+            totalErrors += errors;
+
+            lines.add(String.format(Locale.ROOT, "%-36s %8d %7d %10.1f %10.2f %10.2f %10.2f", operation,
+                    merged.length, errors, merged.length / seconds, percentile(merged, 50), percentile(merged, 99), percentile(merged, 99.9)));
+        }
+
+        lines.add(String.format(Locale.ROOT, "%-36s %8d %7d %10.1f", "total", totalCount, totalErrors, totalCount / seconds));
+
+        for (String line : lines) {
+            log.info(line);
+        }
+
+        if (resultsFile != null) {
+            Files.write(Paths.get(resultsFile), lines, StandardCharsets.UTF_8);
+        }
+
+        return totalErrors;
+    }
+
+    /**
+     * @return the percentile of the sorted latencies in milliseconds
+     */
+    private static double percentile(final long[] sorted, final double percentile) {
+
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        final int rank = (int) Math.ceil(sorted.length * percentile / 100d);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    private Header[] headers(final String tenant, final String username) {
+        return new Header[] { new BasicHeader("sgtenant", tenant), encodeBasicHeader(username, PASSWORD) };
+    }
+
+    private static String config(final String tenant) {
+        return "{\"type\":\"config\",\"config\":{\"buildNum\":16350,\"defaultIndex\":\"" + tenant + "\"}}";
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classification of transport action names as needed by the multitenancy interceptor.
+ * The number of distinct action names is small, so the classification of every action is cached.
+ */
+enum ActionCategory {
+
+    READ, WRITE, FIELD_MAPPINGS, OTHER;
+
+    private static final int MAX_CACHED_ACTIONS = 2000;
+    private static final Map<String, ActionCategory> CACHE = new ConcurrentHashMap<>();
+
+    static ActionCategory of(final String action) {
+        ActionCategory category = CACHE.get(action);
+
+        if (category == null) {
+            category = classify(action);
+
+            if (CACHE.size() < MAX_CACHED_ACTIONS) {
+                CACHE.put(action, category);
+            }
+        }
+
+        return category;
+    }
+
+    private static ActionCategory classify(final String action) {
+
+        if (action.startsWith("indices:data/write")) {
+            return WRITE;
+        }
+
+        if (action.startsWith("indices:data/read/")) {
+            return READ;
+        }
+
+        if (action.startsWith("indices:admin/mappings/fields/get")) {
+            return FIELD_MAPPINGS;
+        }
+
+        return OTHER;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+
+/**
+ * Caches the concrete index names of index expressions for one version of the cluster metadata.
+ * All entries are dropped as soon as a lookup sees a different metadata version.
+ * Date math expressions like <code>&lt;logs-{now/d}&gt;</code> depend on the time and are never cached.
+ */
+final class ConcreteIndicesCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final IndexNameExpressionResolver resolver;
+    private final IndicesOptions indicesOptions;
+    private final int maxEntries;
+    private volatile Generation generation = new Generation(null, -1);
+
+    ConcreteIndicesCache(final IndexNameExpressionResolver resolver, final IndicesOptions indicesOptions, final int maxEntries) {
+        this.resolver = resolver;
+        this.indicesOptions = indicesOptions;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the concrete index names, the returned array must not be modified
+     */
+    String[] concreteIndexNames(final ClusterState state, final String[] expressions) {
+
+        if (containsDateMath(expressions)) {
+            return resolver.concreteIndexNames(state, indicesOptions, expressions);
+        }
+
+        final Generation current = generation(state);
+        final Expressions key = new Expressions(expressions);
+        String[] concreteIndices = current.entries.get(key);
+
+        if (concreteIndices == null) {
+            concreteIndices = resolver.concreteIndexNames(state, indicesOptions, expressions);
+
+            if (current.entries.size() < maxEntries) {
+                current.entries.put(key, concreteIndices);
+            }
+        }
+
+        return concreteIndices;
+    }
+
+    static boolean containsDateMath(final String[] expressions) {
+
+        if (expressions == null) {
+            return false;
+        }
+
+        for (String expression : expressions) {
+            if (expression != null && expression.indexOf('<') >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private Generation generation(final ClusterState state) {
+        final Generation current = generation;
+
+        if (current.metaDataVersion == state.metaData().version() && Objects.equals(current.clusterUUID, state.metaData().clusterUUID())) {
+            return current;
+        }
+
+        final Generation next = new Generation(state.metaData().clusterUUID(), state.metaData().version());
+        generation = next;
+        return next;
+    }
+
+    private static final class Generation {
+        private final String clusterUUID;
+        private final long metaDataVersion;
+        private final Map<Expressions, String[]> entries = new ConcurrentHashMap<>();
+
+        private Generation(final String clusterUUID, final long metaDataVersion) {
+            this.clusterUUID = clusterUUID;
+            this.metaDataVersion = metaDataVersion;
+        }
+    }
+
+    /**
+     * Index expressions of a request usable as a map key
+     */
+    static final class Expressions {
+        private final String[] expressions;
+        private final int hashCode;
+
+        Expressions(final String[] expressions) {
+            this.expressions = expressions == null ? new String[0] : expressions.clone();
+            this.hashCode = Arrays.hashCode(this.expressions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Expressions)) {
+                return false;
+            }
+            final Expressions other = (Expressions) obj;
+            return hashCode == other.hashCode && Arrays.equals(expressions, other.expressions);
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(expressions);
+        }
+    }
+}
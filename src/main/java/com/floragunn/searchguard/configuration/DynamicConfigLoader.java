@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Loads the dynamic configuration of Search Guard (<code>sg_config</code>) from the Search Guard index while
+ * the local node is the elected master.
+ * <p>
+ * The interceptor is only handed the configuration with the requests it evaluates, so the jobs which only run
+ * on the elected master (closing idle tenant indices, migrations and provisioning) would never start on a
+ * dedicated or idle master. The configuration document is read right after the election and then every
+ * {@link #INTERVAL}, and passed on whenever its version changed.
+ */
+final class DynamicConfigLoader implements ClusterStateListener {
+
+    static final String CONFIG_INDEX_SETTING = "searchguard.config_index_name";
+    static final String DEFAULT_CONFIG_INDEX = "searchguard";
+    static final String CONFIG_TYPE = "sg";
+    static final String CONFIG_ID = "config";
+    //marks a request of Search Guard itself, only those may read the Search Guard index
+    private static final String CONF_REQUEST_HEADER = "_sg_conf_request";
+    private static final TimeValue INTERVAL = TimeValue.timeValueSeconds(10);
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final String configIndex;
+    private final Consumer<Settings> onLoaded;
+    private volatile long version = -1;
+    private Cancellable task;
+
+    DynamicConfigLoader(final ClusterService clusterService, final Client client, final ThreadPool threadPool, final Consumer<Settings> onLoaded) {
+        this.client = client;
+        this.threadPool = threadPool;
+        this.configIndex = clusterService.getSettings().get(CONFIG_INDEX_SETTING, DEFAULT_CONFIG_INDEX);
+        this.onLoaded = onLoaded;
+    }
+
+    @Override
+    public synchronized void clusterChanged(final ClusterChangedEvent event) {
+
+        if (event.localNodeMaster() && task == null && client != null && threadPool != null) {
+            task = threadPool.scheduleWithFixedDelay(this::load, INTERVAL, ThreadPool.Names.GENERIC);
+            threadPool.generic().execute(this::load);
+        } else if (!event.localNodeMaster() && task != null) {
+            task.cancel();
+            task = null;
+            version = -1;
+        }
+    }
+
+    private void load() {
+        try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            threadPool.getThreadContext().putHeader(CONF_REQUEST_HEADER, "true");
+            client.prepareGet(configIndex, CONFIG_TYPE, CONFIG_ID).execute(new ActionListener<GetResponse>() {
+
+                @Override
+                public void onResponse(final GetResponse response) {
+
+                    if (!response.isExists() || response.getVersion() == version) {
+                        return;
+                    }
+
+                    final Settings config = parse(response.getSourceAsMap());
+
+                    if (config == null) {
+                        log.warn("Ignore the Search Guard configuration in {} because it has an unknown format", configIndex);
+                        return;
+                    }
+
+                    version = response.getVersion();
+                    onLoaded.accept(config);
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    //the Search Guard index may not be recovered yet, the next run tries again
+                    log.debug("Unable to load the Search Guard configuration from {}", configIndex, e);
+                }
+            });
+        } catch (Exception e) {
+            log.debug("Unable to load the Search Guard configuration from {}", configIndex, e);
+        }
+    }
+
+    /**
+     * @return the settings of a configuration document, which holds the json as base64 encoded binary field
+     * named like the document, or null if the document has another format
+     */
+    static Settings parse(final Map<String, Object> source) {
+        final Object config = source.get(CONFIG_ID);
+
+        if (!(config instanceof String)) {
+            return null;
+        }
+
+        try {
+            final String json = new String(Base64.getDecoder().decode((String) config), StandardCharsets.UTF_8);
+            return Settings.builder().loadFromSource(json, XContentType.JSON).build();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Locale;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.termvectors.MultiTermVectorsRequest;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.floragunn.searchguard.user.User;
+
+/**
+ * Slow log of the interceptor, similar to the search slow log of Elasticsearch.
+ * <p>
+ * Invocations which take longer than one of the configured thresholds are logged with the time spent
+ * per phase. Instances only exist if at least one threshold is configured, the interceptor holds
+ * null otherwise and does not take any timings.
+ */
+final class InterceptorSlowLog {
+
+    enum Phase {
+        /** config lookup, tenant index name, permission and rate limit checks */
+        TENANT,
+        /** rewriting the request to the tenant index */
+        REWRITE,
+        /** resolving index expressions to concrete indices */
+        RESOLVE,
+        /** reducing the indices of the (sub) requests to the allowed ones */
+        REDUCE;
+
+        private final String fieldName = name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Timings of one invocation, not thread safe
+     */
+    static final class Timer {
+        private final long start = System.nanoTime();
+        private final long[] phases = new long[Phase.values().length];
+
+        void add(final Phase phase, final long nanos) {
+            phases[phase.ordinal()] += nanos;
+        }
+    }
+
+    private final Logger log = LogManager.getLogger(PrivilegesInterceptorImpl.class.getName() + ".slowlog");
+    private final long warnNanos;
+    private final long infoNanos;
+    private final long debugNanos;
+
+    private InterceptorSlowLog(final TimeValue warn, final TimeValue info, final TimeValue debug) {
+        this.warnNanos = warn.nanos();
+        this.infoNanos = info.nanos();
+        this.debugNanos = debug.nanos();
+    }
+
+    /**
+     * @return the slow log or null if no threshold is configured
+     */
+    static InterceptorSlowLog of(final MultitenancyConfig config) {
+        final InterceptorSlowLog slowLog = new InterceptorSlowLog(config.getSlowLogWarnThreshold(), config.getSlowLogInfoThreshold(),
+                config.getSlowLogDebugThreshold());
+        return slowLog.warnNanos >= 0 || slowLog.infoNanos >= 0 || slowLog.debugNanos >= 0 ? slowLog : null;
+    }
+
+    Timer start() {
+        return new Timer();
+    }
+
+    /**
+     * Logs the invocation if it exceeded a threshold
+     */
+    void onFinished(final Timer timer, final Phase remainder, final String method, final ActionRequest request, final String action,
+            final User user) {
+        final long took = System.nanoTime() - timer.start;
+        final Level level = level(took);
+
+        if (level == null || !log.isEnabled(level)) {
+            return;
+        }
+
+        log.log(level, message(timer, took, remainder, method, request, action, user));
+    }
+
+    /**
+     * @return the slow log line of the invocation, the time not accounted to a phase is added to the given phase
+     */
+    static String message(final Timer timer, final long took, final Phase remainder, final String method, final ActionRequest request,
+            final String action, final User user) {
+        long accounted = 0;
+
+        for (long nanos : timer.phases) {
+            accounted += nanos;
+        }
+
+        timer.add(remainder, Math.max(0, took - accounted));
+
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(method).append(" took[").append(TimeValue.timeValueNanos(took)).append("], took_nanos[").append(took).append("], phases[");
+
+        for (Phase phase : Phase.values()) {
+            if (timer.phases[phase.ordinal()] > 0) {
+                sb.append(phase.fieldName).append('=').append(timer.phases[phase.ordinal()]).append(' ');
+            }
+        }
+
+        if (sb.charAt(sb.length() - 1) == ' ') {
+            sb.setLength(sb.length() - 1);
+        }
+
+        sb.append("], request[").append(request.getClass().getSimpleName())
+                .append("], sub_requests[").append(subRequests(request))
+                .append("], action[").append(action)
+                .append("], tenant[").append(user == null ? null : user.getRequestedTenant())
+                .append("], user[").append(user == null ? null : user.getName())
+                .append(']');
+
+        return sb.toString();
+    }
+
+    /**
+     * @return the level to log an invocation which took the given time with or null if it is below all thresholds
+     */
+    Level level(final long took) {
+
+        if (warnNanos >= 0 && took >= warnNanos) {
+            return Level.WARN;
+        }
+
+        if (infoNanos >= 0 && took >= infoNanos) {
+            return Level.INFO;
+        }
+
+        if (debugNanos >= 0 && took >= debugNanos) {
+            return Level.DEBUG;
+        }
+
+        return null;
+    }
+
+    static int subRequests(final ActionRequest request) {
+
+        if (request instanceof BulkRequest) {
+            return ((BulkRequest) request).numberOfActions();
+        }
+
+        if (request instanceof MultiGetRequest) {
+            return ((MultiGetRequest) request).getItems().size();
+        }
+
+        if (request instanceof MultiSearchRequest) {
+            return ((MultiSearchRequest) request).requests().size();
+        }
+
+        if (request instanceof MultiTermVectorsRequest) {
+            return ((MultiTermVectorsRequest) request).getRequests().size();
+        }
+
+        return 0;
+    }
+}
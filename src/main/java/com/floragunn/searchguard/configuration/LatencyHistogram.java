@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Lock free latency histogram with power of two nanosecond buckets.
+ * Percentiles are reported as the upper bound of the bucket they fall into.
+ */
+final class LatencyHistogram implements ToXContent {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(final long nanos) {
+        final long value = nanos < 0 ? 0 : nanos;
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in nanoseconds of the bucket the percentile falls into
+     */
+    long percentile(final double percentile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(total * percentile / 100d);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : i == BUCKETS - 1 ? max.get() : Math.min((1L << i) - 1, max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        final long count = this.count.sum();
+        builder.field("count", count);
+        builder.field("avg_nanos", count == 0 ? 0 : sum.sum() / count);
+        builder.field("p50_nanos", percentile(50));
+        builder.field("p99_nanos", percentile(99));
+        builder.field("p999_nanos", percentile(99.9));
+        builder.field("max_nanos", max.get());
+        return builder;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator.IndexType;
+
+/**
+ * The leftover indices of a role compiled into a sorted array, so that
+ * subtracting them from the concrete indices of a request needs no set building.
+ */
+final class LeftOverMatcher {
+
+    private final String[] sortedIndices;
+    private final boolean allIndices;
+    //the leftovers the matcher was compiled from, a copy because the set of the request must not be referenced
+    private final Set<IndexType> leftOvers;
+    private final int leftOversHashCode;
+
+    private LeftOverMatcher(final Set<IndexType> leftOvers) {
+        this.leftOvers = new HashSet<IndexType>(leftOvers);
+        this.leftOversHashCode = this.leftOvers.hashCode();
+        final Set<String> indices = new HashSet<String>(leftOvers.size());
+
+        for (IndexType indexType : leftOvers) {
+            indices.add(indexType.getIndex());
+        }
+
+        this.allIndices = indices.contains("*") || indices.contains("_all");
+        this.sortedIndices = indices.toArray(new String[0]);
+        Arrays.sort(this.sortedIndices);
+    }
+
+    static LeftOverMatcher compile(final Set<IndexType> leftOvers) {
+        return new LeftOverMatcher(leftOvers);
+    }
+
+    /**
+     * @return true if the leftovers contain <code>*</code> or <code>_all</code>
+     */
+    boolean matchesAllIndices() {
+        return allIndices;
+    }
+
+    boolean matches(final String index) {
+        return allIndices || Arrays.binarySearch(sortedIndices, index) >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(sortedIndices);
+    }
+
+    private boolean compiledFrom(final Set<IndexType> leftOvers, final int hashCode) {
+        return leftOversHashCode == hashCode && this.leftOvers.equals(leftOvers);
+    }
+
+    /**
+     * Memoizes compiled matchers by role and leftover indices.
+     * <p>
+     * Matchers are looked up by role and compared to the leftovers of the request by content,
+     * so a hit neither allocates a key nor copies the leftovers.
+     */
+    static final class Cache {
+
+        private static final int MAX_MATCHERS_PER_ROLE = 8;
+        private final int maxRoles;
+        private final Map<String, LeftOverMatcher[]> matchers = new ConcurrentHashMap<>();
+
+        Cache(final int maxRoles) {
+            this.maxRoles = maxRoles;
+        }
+
+        LeftOverMatcher get(final String role, final Set<IndexType> leftOvers) {
+            final int hashCode = leftOvers.hashCode();
+            final LeftOverMatcher[] cached = matchers.get(role);
+
+            if (cached != null) {
+                for (LeftOverMatcher matcher : cached) {
+                    if (matcher.compiledFrom(leftOvers, hashCode)) {
+                        return matcher;
+                    }
+                }
+            }
+
+            final LeftOverMatcher compiled = compile(leftOvers);
+
+            if (cached == null && matchers.size() >= maxRoles) {
+                matchers.clear();
+            }
+
+            //the latest matcher first, the oldest one is dropped if the role has too many
+            final LeftOverMatcher[] updated = new LeftOverMatcher[cached == null ? 1 : Math.min(cached.length + 1, MAX_MATCHERS_PER_ROLE)];
+            updated[0] = compiled;
+
+            if (cached != null) {
+                System.arraycopy(cached, 0, updated, 1, updated.length - 1);
+            }
+
+            matchers.put(role, updated);
+            return compiled;
+        }
+
+        /**
+         * @return the number of roles with cached matchers
+         */
+        int size() {
+            return matchers.size();
+        }
+    }
+}
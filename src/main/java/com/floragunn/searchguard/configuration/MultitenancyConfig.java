@@ -0,0 +1,416 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.indices.IndicesRequestCache;
+
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator.IndexType;
+import com.floragunn.searchguard.user.User;
+
+/**
+ * Immutable snapshot of the kibana multitenancy related parts of the dynamic
+ * Search Guard configuration. A new instance is built whenever the dynamic configuration
+ * changes so that the interceptor does not need to look up settings per request.
+ */
+final class MultitenancyConfig {
+
+    /**
+     * Tenant name with which users request their private tenant
+     */
+    static final String PRIVATE_TENANT = "__user__";
+
+    private final Settings source;
+    private final boolean enabled;
+    private final boolean doNotFailOnForbidden;
+    private final String serverUsername;
+    private final String kibanaIndexName;
+    private final TenantIndexNameCache tenantIndexNames;
+    private final TimeValue statsLogInterval;
+    private final boolean provisionTenantIndices;
+    private final int provisionBatchSize;
+    private final TimeValue provisionInterval;
+    private final boolean sharedTenantIndex;
+    private final String sharedIndexName;
+    private final double tenantReadsPerSecond;
+    private final double tenantWritesPerSecond;
+    private final double userReadsPerSecond;
+    private final double userWritesPerSecond;
+    private final double rateLimitBurstSeconds;
+    private final TimeValue closeIdleTenantIndicesAfter;
+    private final TimeValue idleCheckInterval;
+    private final TimeValue reopenTimeout;
+    private final TimeValue slowLogWarnThreshold;
+    private final TimeValue slowLogInfoThreshold;
+    private final TimeValue slowLogDebugThreshold;
+    private final boolean auditEnabled;
+    private final String auditIndexName;
+    private final int auditQueueSize;
+    private final int auditBulkSize;
+    private final TimeValue auditFlushInterval;
+    private final Settings tenantIndexSettings;
+    private final boolean tenantRequestCache;
+    private final String tenantReadPreference;
+    private final String migrationSourceIndex;
+    private final TimeValue migrationInterval;
+    private final int migrationConcurrency;
+    private final int migrationSlices;
+    private final int migrationBatchSize;
+    private final double migrationDocsPerSecond;
+    private final String migrationCheckpointIndex;
+    private final boolean migrationSwapAlias;
+    private final LeftOverMatcher.Cache leftOverMatchers = new LeftOverMatcher.Cache(1000);
+    private final TenantMatcher.Cache tenantMatchers = new TenantMatcher.Cache(1000);
+
+    private MultitenancyConfig(final Settings source) {
+        this.source = source;
+        this.enabled = source.getAsBoolean("searchguard.dynamic.kibana.multitenancy_enabled", true);
+        this.doNotFailOnForbidden = source.getAsBoolean("searchguard.dynamic.kibana.do_not_fail_on_forbidden", false);
+        this.serverUsername = source.get("searchguard.dynamic.kibana.server_username", "kibanaserver");
+        this.kibanaIndexName = source.get("searchguard.dynamic.kibana.index", ".kibana");
+        this.tenantIndexNames = new TenantIndexNameCache(kibanaIndexName, TenantIndexNameCache.DEFAULT_MAX_ENTRIES);
+        this.statsLogInterval = source.getAsTime("searchguard.dynamic.kibana.stats_log_interval", TimeValue.MINUS_ONE);
+        this.provisionTenantIndices = source.getAsBoolean("searchguard.dynamic.kibana.provision_tenant_indices", false);
+        this.provisionBatchSize = Math.max(1, source.getAsInt("searchguard.dynamic.kibana.provision_batch_size", 10));
+        this.provisionInterval = source.getAsTime("searchguard.dynamic.kibana.provision_interval", TimeValue.timeValueSeconds(1));
+        this.sharedTenantIndex = "shared".equals(source.get("searchguard.dynamic.kibana.tenant_storage", "index"));
+        this.sharedIndexName = source.get("searchguard.dynamic.kibana.shared_index", kibanaIndexName + "-tenants");
+        this.tenantReadsPerSecond = source.getAsDouble("searchguard.dynamic.kibana.rate_limit.tenant_reads_per_second", 0d);
+        this.tenantWritesPerSecond = source.getAsDouble("searchguard.dynamic.kibana.rate_limit.tenant_writes_per_second", 0d);
+        this.userReadsPerSecond = source.getAsDouble("searchguard.dynamic.kibana.rate_limit.user_reads_per_second", 0d);
+        this.userWritesPerSecond = source.getAsDouble("searchguard.dynamic.kibana.rate_limit.user_writes_per_second", 0d);
+        this.rateLimitBurstSeconds = source.getAsDouble("searchguard.dynamic.kibana.rate_limit.burst_seconds", 1d);
+        this.closeIdleTenantIndicesAfter = source.getAsTime("searchguard.dynamic.kibana.close_idle_tenant_indices_after", TimeValue.MINUS_ONE);
+        this.idleCheckInterval = source.getAsTime("searchguard.dynamic.kibana.idle_check_interval", TimeValue.timeValueMinutes(5));
+        this.reopenTimeout = source.getAsTime("searchguard.dynamic.kibana.reopen_timeout", TimeValue.timeValueSeconds(10));
+        this.slowLogWarnThreshold = source.getAsTime("searchguard.dynamic.kibana.slowlog.threshold.warn", TimeValue.MINUS_ONE);
+        this.slowLogInfoThreshold = source.getAsTime("searchguard.dynamic.kibana.slowlog.threshold.info", TimeValue.MINUS_ONE);
+        this.slowLogDebugThreshold = source.getAsTime("searchguard.dynamic.kibana.slowlog.threshold.debug", TimeValue.MINUS_ONE);
+        this.auditEnabled = source.getAsBoolean("searchguard.dynamic.kibana.audit.enabled", false);
+        this.auditIndexName = source.get("searchguard.dynamic.kibana.audit.index", ".searchguard_tenant_audit");
+        this.auditQueueSize = Math.max(1, source.getAsInt("searchguard.dynamic.kibana.audit.queue_size", 10000));
+        this.auditBulkSize = Math.max(1, source.getAsInt("searchguard.dynamic.kibana.audit.bulk_size", 500));
+        this.auditFlushInterval = source.getAsTime("searchguard.dynamic.kibana.audit.flush_interval", TimeValue.timeValueSeconds(5));
+        this.tenantRequestCache = source.getAsBoolean("searchguard.dynamic.kibana.tenant_index.request_cache", true);
+        this.tenantIndexSettings = Settings.builder()
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_AUTO_EXPAND_REPLICAS, source.get("searchguard.dynamic.kibana.tenant_index.auto_expand_replicas", "0-1"))
+                .put(IndicesRequestCache.INDEX_CACHE_REQUEST_ENABLED_SETTING.getKey(), tenantRequestCache)
+                .build();
+        final String readPreference = source.get("searchguard.dynamic.kibana.tenant_index.read_preference", "_local");
+        this.tenantReadPreference = readPreference == null || readPreference.isEmpty() ? null : readPreference;
+        final String migrationSource = source.get("searchguard.dynamic.kibana.migration.source_index");
+        this.migrationSourceIndex = migrationSource == null || migrationSource.isEmpty() || migrationSource.equals(kibanaIndexName) ? null : migrationSource;
+        this.migrationInterval = source.getAsTime("searchguard.dynamic.kibana.migration.interval", TimeValue.timeValueMinutes(1));
+        this.migrationConcurrency = Math.max(1, source.getAsInt("searchguard.dynamic.kibana.migration.concurrency", 4));
+        this.migrationSlices = Math.max(1, source.getAsInt("searchguard.dynamic.kibana.migration.slices", 2));
+        this.migrationBatchSize = Math.max(1, source.getAsInt("searchguard.dynamic.kibana.migration.batch_size", 500));
+        this.migrationDocsPerSecond = source.getAsDouble("searchguard.dynamic.kibana.migration.docs_per_second", 0d);
+        this.migrationCheckpointIndex = source.get("searchguard.dynamic.kibana.migration.checkpoint_index", ".searchguard_tenant_migration");
+        this.migrationSwapAlias = source.getAsBoolean("searchguard.dynamic.kibana.migration.swap_alias", false);
+    }
+
+    static MultitenancyConfig of(final Settings config) {
+        return new MultitenancyConfig(config == null ? Settings.EMPTY : config);
+    }
+
+    /**
+     * @return true if this snapshot was built from exactly the given settings instance
+     */
+    boolean isBuiltFrom(final Settings config) {
+        return source == config;
+    }
+
+    /**
+     * @return true if both snapshots were built from settings with the same content
+     */
+    boolean hasSameSource(final MultitenancyConfig other) {
+        return source.equals(other.source);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    boolean isDoNotFailOnForbidden() {
+        return doNotFailOnForbidden;
+    }
+
+    String getServerUsername() {
+        return serverUsername;
+    }
+
+    String getKibanaIndexName() {
+        return kibanaIndexName;
+    }
+
+    /**
+     * @return interval in which the multitenancy stats are logged, zero or negative if they should not be logged
+     */
+    TimeValue getStatsLogInterval() {
+        return statsLogInterval;
+    }
+
+    /**
+     * @return true if missing tenant indices should be created in the background
+     */
+    boolean isProvisionTenantIndices() {
+        return provisionTenantIndices;
+    }
+
+    /**
+     * @return max number of tenant indices created per provisioning run
+     */
+    int getProvisionBatchSize() {
+        return provisionBatchSize;
+    }
+
+    TimeValue getProvisionInterval() {
+        return provisionInterval;
+    }
+
+    /**
+     * @return true if all tenants are stored in one shared index instead of one index per tenant
+     */
+    boolean isSharedTenantIndex() {
+        return sharedTenantIndex;
+    }
+
+    String getSharedIndexName() {
+        return sharedIndexName;
+    }
+
+    /**
+     * @return true if any rate limit for tenant requests is configured
+     */
+    boolean isRateLimited() {
+        return tenantReadsPerSecond > 0 || tenantWritesPerSecond > 0 || userReadsPerSecond > 0 || userWritesPerSecond > 0;
+    }
+
+    double getTenantReadsPerSecond() {
+        return tenantReadsPerSecond;
+    }
+
+    double getTenantWritesPerSecond() {
+        return tenantWritesPerSecond;
+    }
+
+    double getUserReadsPerSecond() {
+        return userReadsPerSecond;
+    }
+
+    double getUserWritesPerSecond() {
+        return userWritesPerSecond;
+    }
+
+    double getRateLimitBurstSeconds() {
+        return rateLimitBurstSeconds;
+    }
+
+    /**
+     * @return time after which unused tenant indices are closed, zero or negative if they should be kept open
+     */
+    TimeValue getCloseIdleTenantIndicesAfter() {
+        return closeIdleTenantIndicesAfter;
+    }
+
+    TimeValue getIdleCheckInterval() {
+        return idleCheckInterval;
+    }
+
+    /**
+     * @return how long a request waits for the reopen of a closed tenant index
+     */
+    TimeValue getReopenTimeout() {
+        return reopenTimeout;
+    }
+
+    /**
+     * @return slow log threshold for warnings, negative if disabled
+     */
+    TimeValue getSlowLogWarnThreshold() {
+        return slowLogWarnThreshold;
+    }
+
+    TimeValue getSlowLogInfoThreshold() {
+        return slowLogInfoThreshold;
+    }
+
+    TimeValue getSlowLogDebugThreshold() {
+        return slowLogDebugThreshold;
+    }
+
+    boolean isAuditEnabled() {
+        return auditEnabled;
+    }
+
+    String getAuditIndexName() {
+        return auditIndexName;
+    }
+
+    /**
+     * @return maximum number of distinct pending audit events, further events are dropped until the next flush
+     */
+    int getAuditQueueSize() {
+        return auditQueueSize;
+    }
+
+    int getAuditBulkSize() {
+        return auditBulkSize;
+    }
+
+    TimeValue getAuditFlushInterval() {
+        return auditFlushInterval;
+    }
+
+    /**
+     * @return settings of the index template for tenant indices, one replica by default because a copy on
+     * every node (<code>0-all</code>) only pays off for clusters with few tenants
+     */
+    Settings getTenantIndexSettings() {
+        return tenantIndexSettings;
+    }
+
+    /**
+     * @return true if rewritten searches of a tenant should use the shard request cache
+     */
+    boolean isTenantRequestCache() {
+        return tenantRequestCache;
+    }
+
+    /**
+     * @return preference of rewritten reads of a tenant or null if reads are scheduled as usual
+     */
+    String getTenantReadPreference() {
+        return tenantReadPreference;
+    }
+
+    /**
+     * @return former kibana index name whose tenant indices are migrated or null if no migration is configured
+     */
+    String getMigrationSourceIndex() {
+        return migrationSourceIndex;
+    }
+
+    TimeValue getMigrationInterval() {
+        return migrationInterval;
+    }
+
+    /**
+     * @return number of tenant indices migrated in parallel
+     */
+    int getMigrationConcurrency() {
+        return migrationConcurrency;
+    }
+
+    /**
+     * @return number of sliced scrolls per tenant index
+     */
+    int getMigrationSlices() {
+        return migrationSlices;
+    }
+
+    int getMigrationBatchSize() {
+        return migrationBatchSize;
+    }
+
+    /**
+     * @return throttle of the migration over all indices and slices, not throttled if not positive
+     */
+    double getMigrationDocsPerSecond() {
+        return migrationDocsPerSecond;
+    }
+
+    String getMigrationCheckpointIndex() {
+        return migrationCheckpointIndex;
+    }
+
+    /**
+     * @return true if a migrated index is replaced by an alias of its name pointing to the new index
+     */
+    boolean isMigrationSwapAlias() {
+        return migrationSwapAlias;
+    }
+
+    /**
+     * @return the key which identifies the documents of a tenant in the shared index
+     */
+    String toTenantKey(final String tenantIndexName) {
+        return tenantIndexName.substring(kibanaIndexName.length() + 1);
+    }
+
+    /**
+     * @return the name of the kibana index of the tenant with the given key in the shared index
+     */
+    String fromTenantKey(final String tenantKey) {
+        return kibanaIndexName + "_" + tenantKey;
+    }
+
+    /**
+     * @return the (cached) name of the kibana index of the given tenant
+     */
+    String toUserIndexName(final String tenant) {
+        return tenantIndexNames.toUserIndexName(tenant);
+    }
+
+    /**
+     * @return the (cached) name of the kibana index of the private tenant of the given user, which no regular
+     * tenant maps to because tenant names starting with {@value #PRIVATE_TENANT} are never granted
+     */
+    String toPrivateIndexName(final String username) {
+        return tenantIndexNames.toUserIndexName(PRIVATE_TENANT + username);
+    }
+
+    /**
+     * @return true if the tenant name is in the namespace of the private tenants and can not be granted as a regular tenant
+     */
+    static boolean isReservedTenantName(final String tenant) {
+        return tenant.startsWith(PRIVATE_TENANT);
+    }
+
+    /**
+     * @return the (memoized) matcher for the leftover indices of a role
+     */
+    LeftOverMatcher leftOverMatcher(final String role, final Set<IndexType> leftOvers) {
+        return leftOverMatchers.get(role, leftOvers);
+    }
+
+    /**
+     * @return the grant of the tenant by the (memoized) wildcard and regex tenant grants of the user,
+     * TRUE if read-write, FALSE if read-only, null if not granted
+     */
+    Boolean tenantPatternGrant(final String username, final Map<String, Boolean> tenants, final String tenant, final boolean write) {
+        return tenantMatchers.grant(username, tenants, tenant, write);
+    }
+
+    boolean isKibanaServer(final User user) {
+        return serverUsername.equals(user.getName());
+    }
+
+    @Override
+    public String toString() {
+        return "MultitenancyConfig [enabled=" + enabled + ", doNotFailOnForbidden=" + doNotFailOnForbidden + ", serverUsername="
+                + serverUsername + ", kibanaIndexName=" + kibanaIndexName + ", statsLogInterval=" + statsLogInterval + ", provisionTenantIndices=" + provisionTenantIndices
+                + ", sharedTenantIndex=" + sharedTenantIndex + ", sharedIndexName=" + sharedIndexName
+                + ", rateLimited=" + isRateLimited() + ", closeIdleTenantIndicesAfter=" + closeIdleTenantIndicesAfter
+                + ", auditEnabled=" + auditEnabled + ", tenantIndexSettings=" + tenantIndexSettings + ", tenantReadPreference=" + tenantReadPreference
+                + ", migrationSourceIndex=" + migrationSourceIndex + "]";
+    }
+}
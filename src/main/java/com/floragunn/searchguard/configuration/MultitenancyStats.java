@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Node local counters of the multitenancy interceptor. All counters are {@link LongAdder}s,
+ * so recording is cheap even if many transport threads hit the same tenant.
+ */
+public final class MultitenancyStats implements ToXContentObject {
+
+    /**
+     * Tenants beyond this number are accounted under {@link #OTHER_TENANTS}
+     * to bound the memory used by the stats of installations with many private tenants
+     */
+    static final int MAX_TRACKED_TENANTS = 10_000;
+    static final String OTHER_TENANTS = "_other";
+
+    static final class TenantCounters {
+        final LongAdder requests = new LongAdder();
+        final LongAdder rewrites = new LongAdder();
+        final LongAdder readOnlyDenied = new LongAdder();
+        final LongAdder notAllowed = new LongAdder();
+        final LongAdder missingIndex = new LongAdder();
+        final LongAdder throttledReads = new LongAdder();
+        final LongAdder throttledWrites = new LongAdder();
+    }
+
+    private final Map<String, TenantCounters> tenants = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> rewritesByRequestClass = new ConcurrentHashMap<>();
+    private final LatencyHistogram replaceKibanaIndexLatency = new LatencyHistogram();
+    private final LatencyHistogram replaceAllowedIndicesLatency = new LatencyHistogram();
+    private final TenantRequestRewriters rewriters;
+    private final TenantAuditTrail auditTrail;
+
+    MultitenancyStats(final TenantRequestRewriters rewriters) {
+        this(rewriters, null);
+    }
+
+    MultitenancyStats(final TenantRequestRewriters rewriters, final TenantAuditTrail auditTrail) {
+        this.rewriters = rewriters;
+        this.auditTrail = auditTrail;
+    }
+
+    void onRequest(final String tenant) {
+        tenant(tenant).requests.increment();
+    }
+
+    void onRewrite(final String tenant, final Class<?> requestClass) {
+        tenant(tenant).rewrites.increment();
+        rewritesByRequestClass.computeIfAbsent(requestClass.getName(), k -> new LongAdder()).increment();
+    }
+
+    void onReadOnlyDenied(final String tenant) {
+        tenant(tenant).readOnlyDenied.increment();
+    }
+
+    void onNotAllowed(final String tenant) {
+        tenant(tenant).notAllowed.increment();
+    }
+
+    void onMissingTenantIndex(final String tenant) {
+        tenant(tenant).missingIndex.increment();
+    }
+
+    void onThrottled(final String tenant, final boolean write) {
+        final TenantCounters counters = tenant(tenant);
+        (write ? counters.throttledWrites : counters.throttledReads).increment();
+    }
+
+    LatencyHistogram replaceKibanaIndexLatency() {
+        return replaceKibanaIndexLatency;
+    }
+
+    LatencyHistogram replaceAllowedIndicesLatency() {
+        return replaceAllowedIndicesLatency;
+    }
+
+    TenantCounters tenant(final String tenant) {
+        final TenantCounters counters = tenants.get(tenant);
+
+        if (counters != null) {
+            return counters;
+        }
+
+        if (tenants.size() >= MAX_TRACKED_TENANTS) {
+            return tenants.computeIfAbsent(OTHER_TENANTS, k -> new TenantCounters());
+        }
+
+        return tenants.computeIfAbsent(tenant, k -> new TenantCounters());
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject();
+
+        builder.startObject("tenants");
+        for (Map.Entry<String, TenantCounters> entry : new TreeMap<>(tenants).entrySet()) {
+            final TenantCounters counters = entry.getValue();
+            builder.startObject(entry.getKey());
+            builder.field("requests", counters.requests.sum());
+            builder.field("rewrites", counters.rewrites.sum());
+            builder.field("read_only_denied", counters.readOnlyDenied.sum());
+            builder.field("not_allowed", counters.notAllowed.sum());
+            builder.field("missing_index", counters.missingIndex.sum());
+            builder.field("throttled_reads", counters.throttledReads.sum());
+            builder.field("throttled_writes", counters.throttledWrites.sum());
+            builder.endObject();
+        }
+        builder.endObject();
+
+        builder.startObject("rewrites_by_request_class");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(rewritesByRequestClass).entrySet()) {
+            builder.field(entry.getKey(), entry.getValue().sum());
+        }
+        builder.endObject();
+
+        builder.startObject("unhandled_request_classes");
+        for (Map.Entry<String, Long> entry : rewriters.getUnhandledRequestCounts().entrySet()) {
+            builder.field(entry.getKey(), entry.getValue());
+        }
+        builder.endObject();
+
+        if (auditTrail != null) {
+            builder.startObject("audit");
+            auditTrail.toXContent(builder, params);
+            builder.endObject();
+        }
+
+        builder.startObject("replace_kibana_index_latency");
+        replaceKibanaIndexLatency.toXContent(builder, params);
+        builder.endObject();
+
+        builder.startObject("replace_allowed_indices_latency");
+        replaceAllowedIndicesLatency.toXContent(builder, params);
+        builder.endObject();
+
+        builder.endObject();
+        return builder;
+    }
+}
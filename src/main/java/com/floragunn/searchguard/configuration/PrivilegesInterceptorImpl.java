@@ -16,62 +16,180 @@ package com.floragunn.searchguard.configuration;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.CompositeIndicesRequest;
 import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.IndicesRequest.Replaceable;
-import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
-import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsIndexRequest;
-import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRequest;
-import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
 import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.MultiGetRequest;
 import org.elasticsearch.action.get.MultiGetRequest.Item;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.MultiSearchRequest;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.support.IndicesOptions;
-import org.elasticsearch.action.support.replication.ReplicationRequest;
-import org.elasticsearch.action.support.single.shard.SingleShardRequest;
 import org.elasticsearch.action.termvectors.MultiTermVectorsRequest;
 import org.elasticsearch.action.termvectors.TermVectorsRequest;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
 import org.elasticsearch.threadpool.ThreadPool;
 
+import com.floragunn.searchguard.configuration.InterceptorSlowLog.Phase;
+import com.floragunn.searchguard.configuration.InterceptorSlowLog.Timer;
 import com.floragunn.searchguard.configuration.PrivilegesEvaluator.IndexType;
+import com.floragunn.searchguard.configuration.TenantRequestRewriters.ReplaceResult;
 import com.floragunn.searchguard.user.User;
 
 public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
 
     private final static IndicesOptions DEFAULT_INDICES_OPTIONS = IndicesOptions.lenientExpandOpen();
-    private static final String USER_TENANT = "__user__";
     private static final String EMPTY_STRING = "";
+    private static final String[] NO_SURVIVORS = new String[0];
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
 
     protected final Logger log = LogManager.getLogger(this.getClass());
+    private final TenantRequestRewriters rewriters;
+    private final ConcreteIndicesCache concreteIndicesCache;
+    private final MultitenancyStats stats;
+    private final TenantIndexProvisioner provisioner;
+    private final TenantStorageMigrator migrator;
+    private final TenantIndexRegistry registry;
+    private final TenantIndexLifecycle lifecycle;
+    private final TenantAuditTrail auditTrail;
+    private final TenantIndexMigrationJob migrationJob;
+    private final TenantRateLimiter rateLimiter = new TenantRateLimiter();
+    private volatile InterceptorSlowLog slowLog;
+    private volatile MultitenancyConfig configSnapshot = MultitenancyConfig.of(Settings.EMPTY);
+    private Cancellable statsLogger;
     
     public PrivilegesInterceptorImpl(IndexNameExpressionResolver resolver, ClusterService clusterService, Client client,
             ThreadPool threadPool) {
         super(resolver, clusterService, client, threadPool);
+        this.rewriters = TenantRequestRewriters.load(PrivilegesInterceptorImpl.class.getClassLoader());
+        this.concreteIndicesCache = new ConcreteIndicesCache(resolver, DEFAULT_INDICES_OPTIONS, ConcreteIndicesCache.DEFAULT_MAX_ENTRIES);
+        this.auditTrail = new TenantAuditTrail(clusterService, client, threadPool);
+        this.stats = new MultitenancyStats(rewriters, auditTrail);
+        this.provisioner = new TenantIndexProvisioner(clusterService, client, threadPool);
+        this.migrator = new TenantStorageMigrator(clusterService, client, threadPool);
+        this.registry = new TenantIndexRegistry();
+        this.lifecycle = new TenantIndexLifecycle(clusterService, client, threadPool, registry);
+        this.migrationJob = new TenantIndexMigrationJob(clusterService, client, threadPool);
+        
+        if(clusterService != null) {
+            clusterService.addListener(registry);
+            clusterService.addListener(migrator);
+            //the jobs of the elected master must not wait for the first request to reach the master
+            clusterService.addListener(new DynamicConfigLoader(clusterService, client, threadPool, this::getMultitenancyConfig));
+        }
+    }
+    
+    /**
+     * @return node local multitenancy stats
+     */
+    public MultitenancyStats getStats() {
+        return stats;
+    }
+    
+    TenantIndexRegistry getTenantIndexRegistry() {
+        return registry;
+    }
+    
+    /**
+     * The dynamic configuration is replaced as a whole on every change, so the
+     * snapshot only needs to be rebuilt when we see a new settings instance
+     */
+    private MultitenancyConfig getMultitenancyConfig(final Settings config) {
+        final MultitenancyConfig current = configSnapshot;
+        
+        if(current.isBuiltFrom(config)) {
+            return current;
+        }
+        
+        return updateMultitenancyConfig(config);
+    }
+    
+    /**
+     * The configuration loaded from the index on the elected master is another settings instance than the one
+     * of the requests, the jobs are only reconfigured if the content differs
+     */
+    private synchronized MultitenancyConfig updateMultitenancyConfig(final Settings config) {
+        final MultitenancyConfig current = configSnapshot;
+        
+        if(current.isBuiltFrom(config)) {
+            return current;
+        }
+        
+        final MultitenancyConfig updated = MultitenancyConfig.of(config);
+        configSnapshot = updated;
+        
+        if(current.hasSameSource(updated)) {
+            return updated;
+        }
+        
+        if(log.isDebugEnabled()) {
+            log.debug("Multitenancy configuration changed: {}", updated);
+        }
+        
+        onConfigChanged(current, updated);
+        return updated;
+    }
+    
+    private synchronized void onConfigChanged(final MultitenancyConfig oldConfig, final MultitenancyConfig newConfig) {
+        
+        provisioner.configure(newConfig);
+        migrator.configure(newConfig);
+        lifecycle.configure(newConfig);
+        auditTrail.configure(newConfig);
+        migrationJob.configure(newConfig);
+        rateLimiter.configure(newConfig);
+        slowLog = InterceptorSlowLog.of(newConfig);
+        
+        if(clusterService != null) {
+            registry.configure(newConfig.getKibanaIndexName(), clusterService.state());
+        }
+        
+        if(threadPool == null || newConfig.getStatsLogInterval().equals(oldConfig.getStatsLogInterval())) {
+            return;
+        }
+        
+        if(statsLogger != null) {
+            statsLogger.cancel();
+            statsLogger = null;
+        }
+        
+        if(newConfig.getStatsLogInterval().nanos() > 0) {
+            statsLogger = threadPool.scheduleWithFixedDelay(() -> log.info("Multitenancy stats: {}", Strings.toString(stats)),
+                    newConfig.getStatsLogInterval(), ThreadPool.Names.GENERIC);
+        }
     }
     
-    private boolean isTenantAllowed(final ActionRequest request, final String action, final User user, final Map<String, Boolean> tenants, final String requestedTenant) {
+    private boolean isTenantAllowed(final ActionRequest request, final String action, final User user, final MultitenancyConfig mtConfig,
+            final Map<String, Boolean> tenants, final String requestedTenant, final boolean privateTenant) {
+        
+        stats.onRequest(requestedTenant);
         
-        if (!tenants.keySet().contains(requestedTenant)) {
+        //null if not allowed, FALSE if read only
+        final Boolean readWrite = privateTenant ? tenants.get(requestedTenant) : patternTenantGrant(action, mtConfig, tenants, user.getName(), requestedTenant, tenants.get(requestedTenant));
+        
+        if (readWrite == null) {
             log.warn("Tenant {} is not allowed for user {}", requestedTenant, user.getName());
+            stats.onNotAllowed(requestedTenant);
+            auditTrail.onNotAllowed(requestedTenant, user.getName());
             return false;
         } else {
             // allowed, check read-write permissions
@@ -79,46 +197,64 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
             
             if(log.isDebugEnabled()) {
                 log.debug("request "+request.getClass());
-            }
-            
-            if (request instanceof IndexRequest) {
-
-                final IndexRequest ir = ((IndexRequest) request);
-
-                if (log.isDebugEnabled()) {
+                
+                if (request instanceof IndexRequest) {
+                    final IndexRequest ir = ((IndexRequest) request);
                     log.debug("type " + ir.type());
                     log.debug("id " + ir.id());
-                    log.debug("source " + (ir.source() == null ? null : ir.source().utf8ToString()));
+                    log.debug("source length " + (ir.source() == null ? null : ir.source().length()));
                 }
-
-                /*if (ir.type().equals("config") 
-                        && Character.isDigit(ir.id().charAt(0)) 
-                        && ir.source().toUtf8().contains("buildNum")) {
-                    isBuildNumRequest = true;
-                }*/
-            }
-            
-            if (request instanceof UpdateRequest) {
-
-                final UpdateRequest ir = ((UpdateRequest) request);
-
-                if (log.isDebugEnabled()) {
+                
+                if (request instanceof UpdateRequest) {
+                    final UpdateRequest ir = ((UpdateRequest) request);
                     log.debug("type " + ir.type());
                     log.debug("id " + ir.id());
-                    log.debug("source " + (ir.doc() == null ? null : ir.doc().source()==null?null:ir.doc().source().utf8ToString()));
+                    log.debug("source length " + (ir.doc() == null ? null : ir.doc().source()==null?null:ir.doc().source().length()));
                 }
             }
+
+            /*if (request instanceof IndexRequest
+                    && ir.type().equals("config") 
+                    && Character.isDigit(ir.id().charAt(0)) 
+                    && ir.source().toUtf8().contains("buildNum")) {
+                isBuildNumRequest = true;
+            }*/
             
-            if (!isBuildNumRequest && tenants.get(requestedTenant) == Boolean.FALSE 
-                    && action.startsWith("indices:data/write")) {
+            if (!isBuildNumRequest && readWrite == Boolean.FALSE 
+                    && ActionCategory.of(action) == ActionCategory.WRITE) {
                 log.warn("Tenant {} is not allowed to write (user: {})", requestedTenant, user.getName());
+                stats.onReadOnlyDenied(requestedTenant);
+                auditTrail.onReadOnlyDenied(requestedTenant, user.getName());
                 return false;
             }
         }
         
+        auditTrail.onAccess(requestedTenant, user.getName());
         return true;
     }
     
+    /**
+     * Exact grants are looked up first, wildcard and regex grants are only evaluated if the exact grant
+     * is missing or read only for a write. Tenant names in the namespace of the private tenants are never
+     * granted, so neither an exact grant nor a pattern reaches the private tenant of another user.
+     */
+    static Boolean patternTenantGrant(final String action, final MultitenancyConfig mtConfig, final Map<String, Boolean> tenants,
+            final String username, final String requestedTenant, final Boolean exact) {
+        
+        if (MultitenancyConfig.isReservedTenantName(requestedTenant)) {
+            return null;
+        }
+        
+        final boolean write = ActionCategory.of(action) == ActionCategory.WRITE;
+        
+        if (exact == Boolean.TRUE || (exact == Boolean.FALSE && !write)) {
+            return exact;
+        }
+        
+        final Boolean matched = mtConfig.tenantPatternGrant(username, tenants, requestedTenant, write);
+        return matched == null ? exact : matched;
+    }
+    
     /**
      * return Boolean.TRUE to prematurely deny request
      * return Boolean.FALSE to prematurely allow request
@@ -127,16 +263,32 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
      */
     @Override
     public Boolean replaceKibanaIndex(final ActionRequest request, final String action, final User user, final Settings config, final Set<String> requestedResolvedIndices, final Map<String, Boolean> tenants) { 
+        final long start = System.nanoTime();
+        final InterceptorSlowLog slowLog = this.slowLog;
+        final Timer timer = slowLog == null ? null : slowLog.start();
         
-        final boolean enabled = config.getAsBoolean("searchguard.dynamic.kibana.multitenancy_enabled", true);
+        try {
+            return replaceKibanaIndex0(request, action, user, config, requestedResolvedIndices, tenants, timer);
+        } finally {
+            stats.replaceKibanaIndexLatency().record(System.nanoTime() - start);
+            
+            if(timer != null) {
+                slowLog.onFinished(timer, Phase.TENANT, "replaceKibanaIndex", request, action, user);
+            }
+        }
+    }
+    
+    private Boolean replaceKibanaIndex0(final ActionRequest request, final String action, final User user, final Settings config, final Set<String> requestedResolvedIndices, final Map<String, Boolean> tenants, final Timer timer) { 
         
-        if(!enabled) {
+        final MultitenancyConfig mtConfig = getMultitenancyConfig(config);
+        
+        if(!mtConfig.isEnabled()) {
             return null;
         }
         
-        //next two lines needs to be retrieved from configuration
-        final String kibanaserverUsername = config.get("searchguard.dynamic.kibana.server_username","kibanaserver");
-        final String kibanaIndexName = config.get("searchguard.dynamic.kibana.index",".kibana");
+        final String kibanaserverUsername = mtConfig.getServerUsername();
+        final String kibanaIndexName = mtConfig.getKibanaIndexName();
+        final boolean isKibanaServer = mtConfig.isKibanaServer(user);
 
         String requestedTenant = user.getRequestedTenant();
         
@@ -152,22 +304,33 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
             return null;
         }
         
-        if(USER_TENANT.equals(requestedTenant)) {
+        final boolean privateTenant = MultitenancyConfig.PRIVATE_TENANT.equals(requestedTenant);
+        
+        if(privateTenant) {
             requestedTenant = user.getName();
         }
         
-        if (!user.getName().equals(kibanaserverUsername) 
+        final String tenantIndexName = privateTenant ? mtConfig.toPrivateIndexName(requestedTenant) : mtConfig.toUserIndexName(requestedTenant);
+        
+        if (!isKibanaServer 
+                && !mtConfig.isSharedTenantIndex()
                 && requestedResolvedIndices.size() == 1
-                && requestedResolvedIndices.contains(toUserIndexName(kibanaIndexName, requestedTenant))) {
+                && requestedResolvedIndices.contains(tenantIndexName)) {
             
-            if(isTenantAllowed(request, action, user, tenants, requestedTenant)) {
+            if(isTenantAllowed(request, action, user, mtConfig, tenants, requestedTenant, privateTenant)) {
+                if(!isWithinRateLimit(mtConfig, action, user, requestedTenant)) {
+                    return Boolean.TRUE;
+                }
+                
+                provision(mtConfig, user, tenants, tenantIndexName);
+                lifecycle.onAccess(tenantIndexName);
                 return Boolean.FALSE;
             }
             
         }
         
         //intercept when requests are not made by the kibana server and if the kibana index (.kibana) is the only index involved
-        if (!user.getName().equals(kibanaserverUsername) 
+        if (!isKibanaServer 
                 && requestedResolvedIndices.contains(kibanaIndexName)
                 && requestedResolvedIndices.size() == 1) {
             
@@ -176,17 +339,59 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
                 log.debug("is user tenant: "+requestedTenant.equals(user.getName()));
             }
                         
-            if(!isTenantAllowed(request, action, user, tenants, requestedTenant)) {
+            if(!isTenantAllowed(request, action, user, mtConfig, tenants, requestedTenant, privateTenant)) {
                 return Boolean.TRUE;
             }
-
-            //TODO handle user tenant in that way that this tenant cannot be specified as regular tenant
-            //to avoid security issue
             
-            replaceIndex(request, kibanaIndexName, toUserIndexName(kibanaIndexName, requestedTenant), action);
+            if(!isWithinRateLimit(mtConfig, action, user, requestedTenant)) {
+                return Boolean.TRUE;
+            }
+            
+            provision(mtConfig, user, tenants, tenantIndexName);
+            
+            if (mtConfig.isSharedTenantIndex()) {
+                final long rewriteStart = timer == null ? 0 : System.nanoTime();
+                final Boolean sharedResult = replaceSharedIndex(request, action, mtConfig, requestedTenant, tenantIndexName, user);
+                
+                if(timer != null) {
+                    timer.add(Phase.REWRITE, System.nanoTime() - rewriteStart);
+                }
+                
+                return sharedResult;
+            }
+            
+            final long rewriteStart = timer == null ? 0 : System.nanoTime();
+            final ReplaceResult result = replaceIndex(request, kibanaIndexName, tenantIndexName, action);
+            
+            if(timer != null) {
+                timer.add(Phase.REWRITE, System.nanoTime() - rewriteStart);
+            }
+            
+            if(result == ReplaceResult.REJECTED) {
+                log.warn("{} for tenant {} does not only target {}, will not rewrite it (user: {})", request.getClass().getSimpleName(), requestedTenant, kibanaIndexName, user.getName());
+                return Boolean.TRUE;
+            }
+            
+            if(result == ReplaceResult.REPLACED) {
+                stats.onRewrite(requestedTenant, request.getClass());
+                preferLocalReads(request, mtConfig, tenantIndexName);
+                
+                if(!registry.exists(tenantIndexName)) {
+                    ignoreMissingTenantIndex(request, requestedTenant);
+                } else if(lifecycle.isEnabled() && !reopenClosedTenantIndex(request, mtConfig, tenantIndexName, requestedTenant)) {
+                    return Boolean.TRUE;
+                }
+            }
+            
             return Boolean.FALSE;
 
-        } else if (!user.getName().equals(kibanaserverUsername)) {
+        } else if (!isKibanaServer 
+                && requestedResolvedIndices.contains(kibanaIndexName)
+                && (request instanceof MultiSearchRequest || request instanceof MultiGetRequest)) {
+            
+            return replaceKibanaSubRequests(request, action, user, mtConfig, tenants, requestedTenant, privateTenant, tenantIndexName, timer);
+            
+        } else if (!isKibanaServer) {
 
             if (log.isTraceEnabled()) {
                 log.trace("not a request to only the .kibana index");
@@ -200,116 +405,298 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
     }
     
     
-    private void replaceIndex(final ActionRequest request, final String oldIndexName, final String newIndexName, final String action) {
-        boolean kibOk = false;
-                
-        if(log.isDebugEnabled()) {
-            log.debug("{} index will be replaced with {} in this {} request", oldIndexName, newIndexName, request.getClass().getName());
+    /**
+     * Rewrites the sub-requests of a msearch or mget which mixes the kibana index with other indices and which
+     * only target the kibana index. The other sub-requests are left as they are and, because the request is not
+     * decided here, are evaluated against the privileges of the user as usual.
+     */
+    private Boolean replaceKibanaSubRequests(final ActionRequest request, final String action, final User user, final MultitenancyConfig mtConfig,
+            final Map<String, Boolean> tenants, final String requestedTenant, final boolean privateTenant, final String tenantIndexName, final Timer timer) {
+        
+        final String kibanaIndexName = mtConfig.getKibanaIndexName();
+        
+        if(!isTenantAllowed(request, action, user, mtConfig, tenants, requestedTenant, privateTenant)) {
+            return Boolean.TRUE;
         }
         
-        if(request instanceof GetFieldMappingsIndexRequest
-                || request instanceof GetFieldMappingsRequest) {
-            return;
+        if(!isWithinRateLimit(mtConfig, action, user, requestedTenant)) {
+            return Boolean.TRUE;
         }
-
-        //createKibanaUserIndex(oldIndexName, newIndexName, action);
         
-        //handle msearch and mget
-        //in case of GET change the .kibana index to the userskibanaindex
-        //in case of Search add the userskibanaindex
-        //if (request instanceof CompositeIndicesRequest) {
-        String[] newIndexNames = new String[] { newIndexName };
+        provision(mtConfig, user, tenants, tenantIndexName);
         
+        final long rewriteStart = timer == null ? 0 : System.nanoTime();
+        final int replaced = mtConfig.isSharedTenantIndex()
+                ? SharedTenantIndex.replaceSubRequests(request, kibanaIndexName, mtConfig.getSharedIndexName(), mtConfig.toTenantKey(tenantIndexName))
+                : TenantRequestRewriters.replaceSubRequests(request, kibanaIndexName, tenantIndexName);
         
-        // CreateIndexRequest
-        if (request instanceof CreateIndexRequest) {
-            ((CreateIndexRequest) request).index(newIndexName);
-            kibOk = true;
-        } else if (request instanceof BulkRequest) {
-
-            for (DocWriteRequest<?> ar : ((BulkRequest) request).requests()) {
-
-                if(ar instanceof DeleteRequest) {
-                    ((DeleteRequest) ar).index(newIndexName);
+        if(timer != null) {
+            timer.add(Phase.REWRITE, System.nanoTime() - rewriteStart);
+        }
+        
+        if(replaced < 0) {
+            log.warn("{} for tenant {} has a sub-request which targets {} together with other indices or can not be confined to the tenant, will not rewrite it (user: {})", request.getClass().getSimpleName(), requestedTenant, kibanaIndexName, user.getName());
+            return Boolean.TRUE;
+        }
+        
+        if(log.isDebugEnabled()) {
+            log.debug("Rewrote {} sub-requests of mixed {} for tenant {}", replaced, request.getClass().getSimpleName(), requestedTenant);
+        }
+        
+        if(replaced > 0) {
+            stats.onRewrite(requestedTenant, request.getClass());
+            preferLocalReads(request, mtConfig, mtConfig.isSharedTenantIndex() ? mtConfig.getSharedIndexName() : tenantIndexName);
+            
+            //same as for requests to the kibana index only, but without touching the sub-requests of other indices
+            if(mtConfig.isSharedTenantIndex()) {
+                return null;
+            }
+            
+            if(!registry.exists(tenantIndexName)) {
+                if(request instanceof MultiSearchRequest) {
+                    ignoreUnavailable((MultiSearchRequest) request, tenantIndexName);
+                    stats.onMissingTenantIndex(requestedTenant);
                 }
+            } else if(lifecycle.isEnabled()) {
+                lifecycle.onAccess(tenantIndexName);
                 
-                if(ar instanceof IndexRequest) {
-                    ((IndexRequest) ar).index(newIndexName);
+                if(registry.state(tenantIndexName) == IndexMetaData.State.CLOSE
+                        && !lifecycle.awaitReopen(tenantIndexName, mtConfig.getReopenTimeout())
+                        && request instanceof MultiSearchRequest) {
+                    ignoreUnavailable((MultiSearchRequest) request, tenantIndexName);
                 }
-                
-                if(ar instanceof UpdateRequest) {
-                    ((UpdateRequest) ar).index(newIndexName);
+            }
+        }
+        
+        return null;
+    }
+    
+    private Boolean replaceSharedIndex(final ActionRequest request, final String action, final MultitenancyConfig mtConfig, final String requestedTenant, final String tenantIndexName, final User user) {
+        final String tenantKey = mtConfig.toTenantKey(tenantIndexName);
+        
+        if(!SharedTenantIndex.replaceIndex(request, mtConfig.getSharedIndexName(), tenantKey)) {
+            log.warn("{} for tenant {} can not be confined to the tenant in the shared index, will not rewrite it (user: {})", request.getClass().getSimpleName(), requestedTenant, user.getName());
+            return Boolean.TRUE;
+        }
+        
+        stats.onRewrite(requestedTenant, request.getClass());
+        preferLocalReads(request, mtConfig, mtConfig.getSharedIndexName());
+        return Boolean.FALSE;
+    }
+    
+    /**
+     * Search Guard turns exceptions of the interceptor into an internal server error, so a throttled request is
+     * denied instead and marked by a <code>Retry-After</code> response header, which tells it apart from a
+     * missing privilege.
+     *
+     * @return false if the tenant or the user exceeded its rate limit
+     */
+    private boolean isWithinRateLimit(final MultitenancyConfig mtConfig, final String action, final User user, final String requestedTenant) {
+        if(!mtConfig.isRateLimited()) {
+            return true;
+        }
+        
+        final boolean write = ActionCategory.of(action) == ActionCategory.WRITE;
+        
+        if(rateLimiter.tryAcquire(requestedTenant, user.getName(), write)) {
+            return true;
+        }
+        
+        stats.onThrottled(requestedTenant, write);
+        
+        if(log.isDebugEnabled()) {
+            log.debug("Rate limit exceeded for tenant {} (user: {}, action: {})", requestedTenant, user.getName(), action);
+        }
+        
+        retryLater();
+        return false;
+    }
+    
+    private void retryLater() {
+        if(threadPool != null) {
+            threadPool.getThreadContext().addResponseHeader(RETRY_AFTER_HEADER, "1");
+        }
+    }
+    
+    /**
+     * Enqueues the creation of missing tenant indices, only called once the tenant is authorized so users
+     * can not have indices created for arbitrary tenant names
+     */
+    private void provision(final MultitenancyConfig mtConfig, final User user, final Map<String, Boolean> tenants, final String tenantIndexName) {
+        if(!mtConfig.isProvisionTenantIndices()) {
+            return;
+        }
+        
+        if(mtConfig.isSharedTenantIndex()) {
+            provisioner.onRequest(mtConfig.getSharedIndexName());
+        } else {
+            provisioner.onRequest(user.getName(), tenants, tenantIndexName);
+        }
+    }
+    
+    
+    /**
+     * Searches of a tenant which has no index yet are made lenient, so they are answered on the
+     * coordinating node with an empty response instead of traveling to the shards and failing
+     */
+    private void ignoreMissingTenantIndex(final ActionRequest request, final String requestedTenant) {
+        if(ignoreUnavailable(request)) {
+            stats.onMissingTenantIndex(requestedTenant);
+        }
+    }
+    
+    /**
+     * Reopens the tenant index if it was closed because it was idle and waits up to <code>reopen_timeout</code>
+     * for it, concurrent requests wait for the same reopen. If the index is not open in time, searches get an
+     * empty response and all other requests are denied like throttled ones, because exceptions of the
+     * interceptor become internal server errors.
+     *
+     * @return false if the request is denied
+     */
+    private boolean reopenClosedTenantIndex(final ActionRequest request, final MultitenancyConfig mtConfig, final String tenantIndexName, final String requestedTenant) {
+        lifecycle.onAccess(tenantIndexName);
+        
+        if(registry.state(tenantIndexName) != IndexMetaData.State.CLOSE || lifecycle.awaitReopen(tenantIndexName, mtConfig.getReopenTimeout())) {
+            return true;
+        }
+        
+        if(ignoreUnavailable(request)) {
+            return true;
+        }
+        
+        log.warn("Kibana index of tenant {} was not reopened within {}", requestedTenant, mtConfig.getReopenTimeout());
+        retryLater();
+        return false;
+    }
+    
+    /**
+     * Tenant indices are tiny single shard indices, so the rewritten reads of a tenant prefer a local shard copy,
+     * if there is one (<code>tenant_index.auto_expand_replicas: 0-all</code> puts one on every node), and the shard
+     * request cache. Preferences and cache flags of the client win, sub-requests of other indices are not touched.
+     */
+    private static void preferLocalReads(final ActionRequest request, final MultitenancyConfig mtConfig, final String indexName) {
+        final String preference = mtConfig.getTenantReadPreference();
+        final boolean requestCache = mtConfig.isTenantRequestCache();
+        
+        if(request instanceof SearchRequest) {
+            preferLocalReads((SearchRequest) request, preference, requestCache);
+        } else if(request instanceof MultiSearchRequest) {
+            for(SearchRequest sr: ((MultiSearchRequest) request).requests()) {
+                if(TenantRequestRewriters.isSubRequestOf(sr.indices(), indexName)) {
+                    preferLocalReads(sr, preference, requestCache);
                 }
             }
+        } else if(preference == null) {
+            return;
+        } else if(request instanceof GetRequest) {
+            final GetRequest gr = (GetRequest) request;
             
-            kibOk = true;
-
-        } else if (request instanceof MultiGetRequest) {
-
-            for (Item item : ((MultiGetRequest) request).getItems()) {
-                item.index(newIndexName);
+            if(gr.preference() == null) {
+                gr.preference(preference);
             }
+        } else if(request instanceof MultiGetRequest) {
+            //the preference applies to all items, so mixed requests are left alone
+            final MultiGetRequest mgr = (MultiGetRequest) request;
             
-            kibOk = true;
-
-        } else if (request instanceof MultiSearchRequest) {
-
-            for (SearchRequest ar : ((MultiSearchRequest) request).requests()) {
-                ar.indices(newIndexNames);
+            if(mgr.preference() != null) {
+                return;
             }
             
-            kibOk = true;
-
-        } else if (request instanceof MultiTermVectorsRequest) {
-
-            for (TermVectorsRequest ar : (Iterable<TermVectorsRequest>) () -> ((MultiTermVectorsRequest) request).iterator()) {
-                ar.index(newIndexName);
+            for(Item item: mgr.getItems()) {
+                if(!indexName.equals(item.index())) {
+                    return;
+                }
+            }
+            
+            mgr.preference(preference);
+        }
+    }
+    
+    private static void preferLocalReads(final SearchRequest request, final String preference, final boolean requestCache) {
+        
+        if(preference != null && request.preference() == null) {
+            request.preference(preference);
+        }
+        
+        if(requestCache && request.requestCache() == null) {
+            request.requestCache(Boolean.TRUE);
+        }
+    }
+    
+    private static boolean ignoreUnavailable(final ActionRequest request) {
+        
+        if(request instanceof SearchRequest) {
+            ignoreUnavailable((SearchRequest) request);
+        } else if(request instanceof MultiSearchRequest) {
+            for(SearchRequest sr: ((MultiSearchRequest) request).requests()) {
+                ignoreUnavailable(sr);
             }
-
-            kibOk = true;
-        } else if (request instanceof UpdateRequest) {
-            ((UpdateRequest) request).index(newIndexName);
-            kibOk = true;
-        } else if (request instanceof IndexRequest) {
-            ((IndexRequest) request).index(newIndexName);
-            kibOk = true;
-        } else if (request instanceof DeleteRequest) {
-            ((DeleteRequest) request).index(newIndexName);
-            kibOk = true;
-        } else if (request instanceof SingleShardRequest) {
-            ((SingleShardRequest<?>) request).index(newIndexName);
-            kibOk = true;
-        } else if (request instanceof RefreshRequest) {
-            (( RefreshRequest) request).indices(newIndexNames); //???
-            kibOk = true;
-        } else if (request instanceof ReplicationRequest) {
-            ((ReplicationRequest<?>) request).index(newIndexName);
-            kibOk = true;
-        } else if (request instanceof Replaceable) {
-            Replaceable replaceableRequest = (Replaceable) request;
-            replaceableRequest.indices(newIndexNames);
-            kibOk = true;
         } else {
-            log.warn("Dont know what to do (1) with {}", request.getClass());
+            return false;
         }
-
-        if (!kibOk) {
-            log.warn("Dont know what to do (2) with {}", request.getClass());
+        
+        return true;
+    }
+    
+    private static void ignoreUnavailable(final MultiSearchRequest request, final String indexName) {
+        for(SearchRequest sr: request.requests()) {
+            if(TenantRequestRewriters.isSubRequestOf(sr.indices(), indexName)) {
+                ignoreUnavailable(sr);
+            }
+        }
+    }
+    
+    private static void ignoreUnavailable(final SearchRequest request) {
+        final IndicesOptions options = request.indicesOptions();
+        request.indicesOptions(IndicesOptions.fromOptions(true, true, options.expandWildcardsOpen(), options.expandWildcardsClosed(), options));
+    }
+    
+    private ReplaceResult replaceIndex(final ActionRequest request, final String oldIndexName, final String newIndexName, final String action) {
+                
+        if(log.isDebugEnabled()) {
+            log.debug("{} index will be replaced with {} in this {} request", oldIndexName, newIndexName, request.getClass().getName());
         }
+
+        //createKibanaUserIndex(oldIndexName, newIndexName, action);
+        
+        //handle msearch and mget
+        //in case of GET change the .kibana index to the userskibanaindex
+        //in case of Search add the userskibanaindex
+        return rewriters.replaceIndex(request, oldIndexName, newIndexName);
     }
 
     @Override
     public boolean replaceAllowedIndices(final ActionRequest request, final String action, final User user, final Settings config,
             final Map<String, Set<PrivilegesEvaluator.IndexType>> leftOvers) {
+        final long start = System.nanoTime();
+        final InterceptorSlowLog slowLog = this.slowLog;
+        final Timer timer = slowLog == null ? null : slowLog.start();
+        
+        try {
+            return replaceAllowedIndices0(request, action, user, config, leftOvers, timer);
+        } finally {
+            stats.replaceAllowedIndicesLatency().record(System.nanoTime() - start);
+            
+            if(timer != null) {
+                slowLog.onFinished(timer, Phase.REDUCE, "replaceAllowedIndices", request, action, user);
+            }
+        }
+    }
+    
+    private boolean replaceAllowedIndices0(final ActionRequest request, final String action, final User user, final Settings config,
+            final Map<String, Set<PrivilegesEvaluator.IndexType>> leftOvers, final Timer timer) {
 
-        final boolean enabled = config.getAsBoolean("searchguard.dynamic.kibana.do_not_fail_on_forbidden", false);
+        final MultitenancyConfig mtConfig = getMultitenancyConfig(config);
+        final boolean enabled = mtConfig.isDoNotFailOnForbidden();
 
         if (!enabled || leftOvers.size() == 0) {
             return false;
         }
 
-        if (!action.startsWith("indices:data/read/") 
-                && !action.startsWith("indices:admin/mappings/fields/get")) {
+        final ActionCategory actionCategory = ActionCategory.of(action);
+        
+        if (actionCategory != ActionCategory.READ 
+                && actionCategory != ActionCategory.FIELD_MAPPINGS) {
             return false;
         }
         
@@ -329,11 +716,7 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
             return false;
         }
 
-        final Set<String> leftOversIndex = new HashSet<String>();
-
-        for (IndexType indexType: min.getValue()) {
-            leftOversIndex.add(indexType.getIndex());
-        }
+        final LeftOverMatcher leftOversIndex = mtConfig.leftOverMatcher(min.getKey(), min.getValue());
 
         if(log.isDebugEnabled()) {
             log.debug("handle {}/{} for leftovers {}", action, request.getClass(), leftOversIndex);
@@ -341,10 +724,13 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
         
         if (request instanceof CompositeIndicesRequest) {
             
+            //sub requests of msearch, mget and mtermvectors often repeat the same index expressions
+            final Function<String[], String[]> resolve = batchResolver(leftOversIndex, timer);
+            
             if(request instanceof BulkRequest) {
 
                 for(DocWriteRequest<?> ar: ((BulkRequest) request).requests()) {
-                    final boolean ok = applyIndexReduce0(ar, action, leftOversIndex);
+                    final boolean ok = applyIndexReduce0(ar, resolve);
                     if (!ok) {
                         return false;
                     }
@@ -353,7 +739,7 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
             } else if(request instanceof MultiGetRequest) {
                 
                 for(Item item: ((MultiGetRequest) request).getItems()) {
-                    final boolean ok = applyIndexReduce0(item, action, leftOversIndex);
+                    final boolean ok = applyIndexReduce0(item, resolve);
                     if (!ok) {
                         return false;
                     }
@@ -362,7 +748,7 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
             } else if(request instanceof MultiSearchRequest) {
                 
                 for(ActionRequest ar: ((MultiSearchRequest) request).requests()) {
-                    final boolean ok = applyIndexReduce0(ar, action, leftOversIndex);
+                    final boolean ok = applyIndexReduce0(ar, resolve);
                     if (!ok) {
                         return false;
                     }
@@ -371,14 +757,14 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
             } else if(request instanceof MultiTermVectorsRequest) {
                 
                 for(ActionRequest ar: (Iterable<TermVectorsRequest>) () -> ((MultiTermVectorsRequest) request).iterator()) {
-                    final boolean ok = applyIndexReduce0(ar, action, leftOversIndex);
+                    final boolean ok = applyIndexReduce0(ar, resolve);
                     if (!ok) {
                         return false;
                     }
                 }
                 
             } else if (request instanceof Replaceable) {
-                applyIndexReduce0(request, action, leftOversIndex);
+                applyIndexReduce0(request, resolve);
             } else {
                 log.warn("Can not handle composite request of type '"+request.getClass()+"' here");
             }
@@ -386,83 +772,43 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
             return true;
 
         } else {
-            return applyIndexReduce0(request, action, leftOversIndex);
+            return applyIndexReduce0(request, indices -> resolve(indices, leftOversIndex, timer));
         }
     }
 
-    private boolean applyIndexReduce0(final Object request, final String action, final Set<String> leftOversIndex) {
-
-        if (request instanceof Replaceable) {
-            final Replaceable ir = (Replaceable) request;
-            
-            if(log.isDebugEnabled()) {
-                log.debug("handle Replaceable, indices: {}", Arrays.toString(ir.indices()));
-            }
-            
-            final String[] resolved = resolve(ir.indices(), leftOversIndex);
-            
-            if(resolved == null) {
-                return false;
-            }
-            
-            ir.indices(resolved);
-        } else if (request instanceof SingleShardRequest) {
-            final SingleShardRequest<?> gr = (SingleShardRequest<?>) request;
-            final String[] indices = gr.indices();
-            final String index = gr.index();
-
-            final List<String> indicesL = new ArrayList<String>();
+    private boolean applyIndexReduce0(final Object request, final Function<String[], String[]> resolve) {
 
-            if (index != null) {
-                indicesL.add(index);
-            }
-
-            if (indices != null && indices.length > 0) {
-                indicesL.addAll(Arrays.asList(indices));
-            }
-
-            if(log.isDebugEnabled()) {
-                log.debug("handle SingleShardRequest, indices: {}", indicesL);
-            }
-            
-            final String[] resolved = resolve(indicesL.toArray(new String[0]), leftOversIndex);
-            
-            if(resolved == null) {
-                return false;
-            }
-            
-            gr.index(resolved[0]);
-            
-            //if (r.length == 0) {
-            //    gr.index(EMPTY_STRING);
-            //}
+        if(log.isDebugEnabled()) {
+            log.debug("handle {}", request.getClass());
+        }
 
-        } else if (request instanceof MultiGetRequest.Item) {
-            final MultiGetRequest.Item i = (MultiGetRequest.Item) request;
-            
-            if(log.isDebugEnabled()) {
-                log.debug("handle MultiGetRequest.Item, indices: {}", Arrays.toString(i.indices()));
-            }
-            
-            final String[] resolved = resolve(i.indices(), leftOversIndex);
+        return rewriters.reduceIndices(request, resolve);
+    }
+    
+    /**
+     * @return resolve function which resolves identical index expressions only once
+     */
+    private Function<String[], String[]> batchResolver(final LeftOverMatcher leftOversIndex, final Timer timer) {
+        final Map<ConcreteIndicesCache.Expressions, String[]> resolvedExpressions = new HashMap<>();
+        
+        return unresolved -> {
+            final ConcreteIndicesCache.Expressions key = new ConcreteIndicesCache.Expressions(unresolved);
+            String[] resolved = resolvedExpressions.get(key);
             
             if(resolved == null) {
-                return false;
+                resolved = resolve(unresolved, leftOversIndex, timer);
+                resolvedExpressions.put(key, resolved == null ? NO_SURVIVORS : resolved);
+            } else if(resolved == NO_SURVIVORS) {
+                return null;
             }
             
-            i.index(resolved[0]);
-            
-        } else {
-            log.error(request.getClass() + " not supported");
-            return false;
-        }
-
-        return true;
+            return resolved.clone();
+        };
     }
     
-    private String[] resolve(final String[] unresolved, final Set<String> leftOversIndex) {
+    private String[] resolve(final String[] unresolved, final LeftOverMatcher leftOversIndex, final Timer timer) {
 
-        if (leftOversIndex.contains("*") || leftOversIndex.contains("_all")) {
+        if (leftOversIndex.matchesAllIndices()) {
             
             if(log.isDebugEnabled()) {
                 log.debug("resolved {} with {} to [''] because of * leftovers", Arrays.toString(unresolved), leftOversIndex);
@@ -471,9 +817,19 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
             return null;
         }
 
-        final String[] concreteIndices = resolver.concreteIndexNames(clusterService.state(), DEFAULT_INDICES_OPTIONS, unresolved);
-        final Set<String> survivors = new HashSet<String>(Arrays.asList(concreteIndices));
-        survivors.removeAll(leftOversIndex);
+        final long resolveStart = timer == null ? 0 : System.nanoTime();
+        final String[] concreteIndices = concreteIndicesCache.concreteIndexNames(clusterService.state(), unresolved);
+        
+        if(timer != null) {
+            timer.add(Phase.RESOLVE, System.nanoTime() - resolveStart);
+        }
+        final List<String> survivors = new ArrayList<String>(concreteIndices.length);
+        
+        for (String concreteIndex: concreteIndices) {
+            if (!leftOversIndex.matches(concreteIndex)) {
+                survivors.add(concreteIndex);
+            }
+        }
 
         if (survivors.isEmpty()) {
             
@@ -491,13 +847,4 @@ public class PrivilegesInterceptorImpl extends PrivilegesInterceptor {
         return survivors.toArray(new String[0]);
     }
 
-
-    private String toUserIndexName(final String originalKibanaIndex, final String tenant) {
-        
-        if(tenant == null) {
-            throw new ElasticsearchException("tenant must not be null here");
-        }
-        
-        return originalKibanaIndex+"_"+tenant.hashCode()+"_"+tenant.toLowerCase().replaceAll("[^a-z0-9]+",EMPTY_STRING);
-    }
 }
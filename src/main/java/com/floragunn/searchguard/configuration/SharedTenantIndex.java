@@ -0,0 +1,410 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.List;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsIndexRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequest.Item;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.BoostingQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.DisMaxQueryBuilder;
+import org.elasticsearch.index.query.GeoShapeQueryBuilder;
+import org.elasticsearch.index.query.MoreLikeThisQueryBuilder;
+import org.elasticsearch.index.query.NestedQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.index.query.WrapperQueryBuilder;
+import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
+import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder.FilterFunctionBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+/**
+ * Rewrites kibana requests of a tenant to one index shared by all tenants.
+ * <p>
+ * Documents of a tenant are routed by the tenant key and their ids are suffixed with it, so the ids of
+ * different tenants never collide. Searches are routed the same way and get a filter on the
+ * <code>_routing</code> field injected. Because responses are not rewritten, hits carry the suffixed id.
+ * Suffixing is therefore idempotent, so ids taken from a response can be sent back unchanged. The tenant key
+ * is a suffix and not a prefix because Kibana strips the leading <code>type:</code> of a hit id to get the
+ * saved object id and prepends it again for the next request.
+ * <p>
+ * Only request types which can be confined to the tenant are supported, all others are rejected. The filter
+ * only confines the hits of a search, so searches with parts which read beyond them (aggregations, suggesters,
+ * rescorers and queries which look up other documents like terms lookup or <code>more_like_this</code> with
+ * like documents) are rejected as well.
+ */
+final class SharedTenantIndex {
+
+    static final String ROUTING_FIELD = "_routing";
+
+    @FunctionalInterface
+    private interface SharedIndexReplacer<T> {
+        boolean replace(T request, String sharedIndexName, String tenantKey);
+    }
+
+    private static final ClassValue<SharedIndexReplacer<Object>> REPLACERS = new ClassValue<SharedIndexReplacer<Object>>() {
+        @Override
+        protected SharedIndexReplacer<Object> computeValue(final Class<?> type) {
+            return lookup(type);
+        }
+    };
+
+    private SharedTenantIndex() {
+    }
+
+    /**
+     * @return false if the request was left unchanged because it can not be confined to the tenant
+     */
+    static boolean replaceIndex(final Object request, final String sharedIndexName, final String tenantKey) {
+        final SharedIndexReplacer<Object> replacer = REPLACERS.get(request.getClass());
+        return replacer != null && replacer.replace(request, sharedIndexName, tenantKey);
+    }
+
+    /**
+     * Confines only the sub-requests of a msearch or mget which target nothing but the kibana index to the tenant,
+     * see {@link TenantRequestRewriters#replaceSubRequests(Object, String, String)}
+     *
+     * @return number of rewritten sub-requests, -1 if a sub-request targets the kibana index together with
+     * other indices or can not be confined to the tenant and the request was left unchanged
+     */
+    static int replaceSubRequests(final Object request, final String kibanaIndexName, final String sharedIndexName, final String tenantKey) {
+        int replaced = 0;
+
+        if (request instanceof MultiSearchRequest) {
+            final List<SearchRequest> requests = ((MultiSearchRequest) request).requests();
+
+            if (!TenantRequestRewriters.canReplaceSubRequests(requests, kibanaIndexName)) {
+                return -1;
+            }
+
+            for (SearchRequest sr : requests) {
+                if (TenantRequestRewriters.isSubRequestOf(sr.indices(), kibanaIndexName) && !canConfine(sr)) {
+                    return -1;
+                }
+            }
+
+            for (SearchRequest sr : requests) {
+                if (TenantRequestRewriters.isSubRequestOf(sr.indices(), kibanaIndexName)) {
+                    replaceSearchRequest(sr, sharedIndexName, tenantKey);
+                    replaced++;
+                }
+            }
+        } else if (request instanceof MultiGetRequest) {
+            final List<Item> items = ((MultiGetRequest) request).getItems();
+
+            for (int i = 0; i < items.size(); i++) {
+                if (kibanaIndexName.equals(items.get(i).index())) {
+                    items.set(i, replaceItem(items.get(i), sharedIndexName, tenantKey));
+                    replaced++;
+                }
+            }
+        }
+
+        return replaced;
+    }
+
+    static String toSharedId(final String id, final String tenantKey) {
+
+        if (id == null || isSharedId(id, tenantKey)) {
+            return id;
+        }
+
+        return id + ":" + tenantKey;
+    }
+
+    static String fromSharedId(final String id, final String tenantKey) {
+
+        if (id != null && isSharedId(id, tenantKey)) {
+            return id.substring(0, id.length() - tenantKey.length() - 1);
+        }
+
+        return id;
+    }
+
+    private static boolean isSharedId(final String id, final String tenantKey) {
+        return id.length() > tenantKey.length() + 1 && id.endsWith(tenantKey) && id.charAt(id.length() - tenantKey.length() - 1) == ':';
+    }
+
+    static QueryBuilder tenantFilter(final QueryBuilder query, final String tenantKey) {
+        final BoolQueryBuilder bool = QueryBuilders.boolQuery().filter(QueryBuilders.termQuery(ROUTING_FIELD, tenantKey));
+
+        if (query != null) {
+            bool.must(query);
+        }
+
+        return bool;
+    }
+
+    /**
+     * @return false if the search has parts which are not confined by the tenant filter of its query
+     */
+    static boolean canConfine(final SearchRequest request) {
+        final SearchSourceBuilder source = request.source();
+
+        if (source == null) {
+            return true;
+        }
+
+        if (source.aggregations() != null || source.suggest() != null || (source.rescores() != null && !source.rescores().isEmpty())) {
+            return false;
+        }
+
+        return canConfine(source.query()) && canConfine(source.postFilter());
+    }
+
+    /**
+     * Walks the compound queries of Elasticsearch. Queries of other packages, for example of plugins or modules
+     * like <code>percolate</code> and <code>has_child</code>, may look up documents and are not confined.
+     */
+    private static boolean canConfine(final QueryBuilder query) {
+
+        if (query == null) {
+            return true;
+        }
+
+        if (query instanceof BoolQueryBuilder) {
+            final BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            return canConfine(bool.must()) && canConfine(bool.filter()) && canConfine(bool.mustNot()) && canConfine(bool.should());
+        }
+
+        if (query instanceof ConstantScoreQueryBuilder) {
+            return canConfine(((ConstantScoreQueryBuilder) query).innerQuery());
+        }
+
+        if (query instanceof DisMaxQueryBuilder) {
+            return canConfine(((DisMaxQueryBuilder) query).innerQueries());
+        }
+
+        if (query instanceof BoostingQueryBuilder) {
+            final BoostingQueryBuilder boosting = (BoostingQueryBuilder) query;
+            return canConfine(boosting.positiveQuery()) && canConfine(boosting.negativeQuery());
+        }
+
+        if (query instanceof NestedQueryBuilder) {
+            return canConfine(((NestedQueryBuilder) query).query());
+        }
+
+        if (query instanceof FunctionScoreQueryBuilder) {
+            final FunctionScoreQueryBuilder functionScore = (FunctionScoreQueryBuilder) query;
+
+            for (FilterFunctionBuilder function : functionScore.filterFunctionBuilders()) {
+                if (!canConfine(function.getFilter())) {
+                    return false;
+                }
+            }
+
+            return canConfine(functionScore.query());
+        }
+
+        if (query instanceof TermsQueryBuilder) {
+            return ((TermsQueryBuilder) query).termsLookup() == null;
+        }
+
+        if (query instanceof MoreLikeThisQueryBuilder) {
+            final MoreLikeThisQueryBuilder moreLikeThis = (MoreLikeThisQueryBuilder) query;
+            return moreLikeThis.likeItems().length == 0 && moreLikeThis.unlikeItems().length == 0;
+        }
+
+        if (query instanceof GeoShapeQueryBuilder) {
+            return ((GeoShapeQueryBuilder) query).indexedShapeId() == null;
+        }
+
+        //the wrapped query is only parsed on the shard
+        return !(query instanceof WrapperQueryBuilder) && query.getClass().getPackage() == QueryBuilder.class.getPackage();
+    }
+
+    private static boolean canConfine(final List<QueryBuilder> queries) {
+
+        for (QueryBuilder query : queries) {
+            if (!canConfine(query)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> SharedIndexReplacer<Object> replacer(final SharedIndexReplacer<T> replacer) {
+        return (SharedIndexReplacer<Object>) replacer;
+    }
+
+    private static SharedIndexReplacer<Object> lookup(final Class<?> type) {
+
+        if (GetFieldMappingsIndexRequest.class.isAssignableFrom(type) || GetFieldMappingsRequest.class.isAssignableFrom(type)) {
+            return (request, sharedIndexName, tenantKey) -> true;
+        }
+
+        if (IndexRequest.class.isAssignableFrom(type) || UpdateRequest.class.isAssignableFrom(type)
+                || DeleteRequest.class.isAssignableFrom(type)) {
+            return replacer(SharedTenantIndex::replaceDocWriteRequest);
+        }
+
+        if (BulkRequest.class.isAssignableFrom(type)) {
+            return replacer(SharedTenantIndex::replaceBulkRequest);
+        }
+
+        if (GetRequest.class.isAssignableFrom(type)) {
+            return replacer(SharedTenantIndex::replaceGetRequest);
+        }
+
+        if (MultiGetRequest.class.isAssignableFrom(type)) {
+            return replacer(SharedTenantIndex::replaceMultiGetRequest);
+        }
+
+        if (SearchRequest.class.isAssignableFrom(type)) {
+            return replacer(SharedTenantIndex::replaceSearchRequest);
+        }
+
+        if (MultiSearchRequest.class.isAssignableFrom(type)) {
+            return replacer(SharedTenantIndex::replaceMultiSearchRequest);
+        }
+
+        if (RefreshRequest.class.isAssignableFrom(type)) {
+            return replacer((RefreshRequest request, String sharedIndexName, String tenantKey) -> {
+                request.indices(sharedIndexName);
+                return true;
+            });
+        }
+
+        if (CreateIndexRequest.class.isAssignableFrom(type)) {
+            return replacer((CreateIndexRequest request, String sharedIndexName, String tenantKey) -> {
+                request.index(sharedIndexName);
+                return true;
+            });
+        }
+
+        return null;
+    }
+
+    private static boolean replaceDocWriteRequest(final DocWriteRequest<?> request, final String sharedIndexName, final String tenantKey) {
+
+        if (request.routing() != null && !tenantKey.equals(request.routing())) {
+            return false;
+        }
+
+        switch (request.opType()) {
+        case INDEX:
+        case CREATE:
+            final IndexRequest ir = (IndexRequest) request;
+            ir.index(sharedIndexName).id(toSharedId(ir.id(), tenantKey)).routing(tenantKey);
+            return true;
+        case UPDATE:
+            final UpdateRequest ur = (UpdateRequest) request;
+            ur.index(sharedIndexName).id(toSharedId(ur.id(), tenantKey)).routing(tenantKey);
+            return true;
+        case DELETE:
+            final DeleteRequest dr = (DeleteRequest) request;
+            dr.index(sharedIndexName).id(toSharedId(dr.id(), tenantKey)).routing(tenantKey);
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static boolean replaceBulkRequest(final BulkRequest request, final String sharedIndexName, final String tenantKey) {
+        final List<DocWriteRequest> items = request.requests();
+
+        for (DocWriteRequest<?> item : items) {
+            if (item.routing() != null && !tenantKey.equals(item.routing())) {
+                return false;
+            }
+        }
+
+        for (DocWriteRequest<?> item : items) {
+            replaceDocWriteRequest(item, sharedIndexName, tenantKey);
+        }
+
+        return true;
+    }
+
+    private static boolean replaceGetRequest(final GetRequest request, final String sharedIndexName, final String tenantKey) {
+        request.index(sharedIndexName);
+        request.id(toSharedId(request.id(), tenantKey));
+        request.routing(tenantKey);
+        return true;
+    }
+
+    private static boolean replaceMultiGetRequest(final MultiGetRequest request, final String sharedIndexName, final String tenantKey) {
+        final List<Item> items = request.getItems();
+
+        for (int i = 0; i < items.size(); i++) {
+            items.set(i, replaceItem(items.get(i), sharedIndexName, tenantKey));
+        }
+
+        return true;
+    }
+
+    private static Item replaceItem(final Item item, final String sharedIndexName, final String tenantKey) {
+        //items have no id setter
+        return new Item(sharedIndexName, item.type(), toSharedId(item.id(), tenantKey))
+                .routing(tenantKey)
+                .parent(item.parent())
+                .storedFields(item.storedFields())
+                .version(item.version())
+                .versionType(item.versionType())
+                .fetchSourceContext(item.fetchSourceContext());
+    }
+
+    private static boolean replaceSearchRequest(final SearchRequest request, final String sharedIndexName, final String tenantKey) {
+
+        if (!canConfine(request)) {
+            return false;
+        }
+
+        SearchSourceBuilder source = request.source();
+
+        if (source == null) {
+            source = new SearchSourceBuilder();
+            request.source(source);
+        }
+
+        source.query(tenantFilter(source.query(), tenantKey));
+        request.indices(sharedIndexName);
+        request.routing(tenantKey);
+        return true;
+    }
+
+    private static boolean replaceMultiSearchRequest(final MultiSearchRequest request, final String sharedIndexName, final String tenantKey) {
+
+        for (SearchRequest sr : request.requests()) {
+            if (!canConfine(sr)) {
+                return false;
+            }
+        }
+
+        for (SearchRequest sr : request.requests()) {
+            replaceSearchRequest(sr, sharedIndexName, tenantKey);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Audit trail of tenant accesses and denials which never blocks the calling transport thread.
+ * <p>
+ * Events are collapsed by type, tenant and user into a bounded map of pending events, so a user working in
+ * one tenant produces one document per flush interval with the number of occurrences and the time of the
+ * first and last one. If the map is full, events of new type/tenant/user combinations are dropped and counted
+ * until the next flush. Pending events are written in bulk through the client on the generic thread pool,
+ * either periodically or as soon as a bulk is full.
+ */
+final class TenantAuditTrail implements ToXContent {
+
+    enum Type {
+        ACCESS, READ_ONLY_DENIED, NOT_ALLOWED;
+
+        private final String fieldValue = name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Key {
+        private final Type type;
+        private final String tenant;
+        private final String user;
+        private final int hashCode;
+
+        private Key(final Type type, final String tenant, final String user) {
+            this.type = type;
+            this.tenant = tenant;
+            this.user = user;
+            this.hashCode = 31 * (31 * type.hashCode() + tenant.hashCode()) + user.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hashCode == other.hashCode && type == other.type && tenant.equals(other.tenant) && user.equals(other.user);
+        }
+    }
+
+    /**
+     * A collapsed event. Once taken by a flush the count is sealed, so no occurrence recorded concurrently is lost.
+     */
+    private static final class Event {
+        private static final long SEALED = -1;
+
+        private final long first;
+        private final AtomicLong count = new AtomicLong(1);
+        private volatile long last;
+
+        private Event(final long now) {
+            this.first = now;
+            this.last = now;
+        }
+
+        private boolean increment(final long now) {
+            long current;
+            do {
+                current = count.get();
+                if (current == SEALED) {
+                    return false;
+                }
+            } while (!count.compareAndSet(current, current + 1));
+
+            last = now;
+            return true;
+        }
+
+        private long seal() {
+            return count.getAndSet(SEALED);
+        }
+    }
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final ClusterService clusterService;
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final Map<Key, Event> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile MultitenancyConfig config;
+    private Cancellable task;
+
+    TenantAuditTrail(final ClusterService clusterService, final Client client, final ThreadPool threadPool) {
+        this.clusterService = clusterService;
+        this.client = client;
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * (Re)starts or stops the audit trail according to the given configuration, pending events are flushed
+     */
+    synchronized void configure(final MultitenancyConfig config) {
+        final boolean enabled = config.isAuditEnabled() && client != null;
+
+        if (task != null) {
+            task.cancel();
+            task = null;
+            flushAsync(this.config);
+        }
+
+        this.config = enabled ? config : null;
+
+        if (enabled && threadPool != null) {
+            task = threadPool.scheduleWithFixedDelay(() -> flush(config), config.getAuditFlushInterval(), ThreadPool.Names.GENERIC);
+        }
+    }
+
+    boolean isEnabled() {
+        return config != null;
+    }
+
+    void onAccess(final String tenant, final String user) {
+        record(Type.ACCESS, tenant, user);
+    }
+
+    void onReadOnlyDenied(final String tenant, final String user) {
+        record(Type.READ_ONLY_DENIED, tenant, user);
+    }
+
+    void onNotAllowed(final String tenant, final String user) {
+        record(Type.NOT_ALLOWED, tenant, user);
+    }
+
+    private void record(final Type type, final String tenant, final String user) {
+        final MultitenancyConfig config = this.config;
+
+        if (config == null) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Key key = new Key(type, tenant, user);
+        recorded.increment();
+
+        while (true) {
+            final Event event = pending.get(key);
+
+            if (event != null) {
+                if (event.increment(now)) {
+                    return;
+                }
+                //taken by a flush, start a new event
+                pending.remove(key, event);
+                continue;
+            }
+
+            final int size = pending.size();
+
+            if (size >= config.getAuditQueueSize()) {
+                dropped.increment();
+                return;
+            }
+
+            if (pending.putIfAbsent(key, new Event(now)) == null) {
+                if (size + 1 >= config.getAuditBulkSize()) {
+                    flushAsync(config);
+                }
+                return;
+            }
+        }
+    }
+
+    private void flushAsync(final MultitenancyConfig config) {
+
+        if (config == null || threadPool == null || pending.isEmpty() || !flushing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            threadPool.generic().execute(() -> flush0(config));
+        } catch (Exception e) {
+            flushing.set(false);
+            log.warn("Unable to flush tenant audit events", e);
+        }
+    }
+
+    /**
+     * Writes all pending events in bulks of the configured size, only one flush runs at a time
+     */
+    void flush(final MultitenancyConfig config) {
+
+        if (config == null || pending.isEmpty() || !flushing.compareAndSet(false, true)) {
+            return;
+        }
+
+        flush0(config);
+    }
+
+    private void flush0(final MultitenancyConfig config) {
+        final List<BulkRequestBuilder> bulks = new ArrayList<>();
+
+        try {
+            final String nodeName = nodeName();
+            BulkRequestBuilder bulk = null;
+
+            for (Map.Entry<Key, Event> entry : pending.entrySet()) {
+                final long count = entry.getValue().seal();
+                //a recorder which sees the sealed event replaces it, so only remove this very event
+                pending.remove(entry.getKey(), entry.getValue());
+
+                if (count <= 0) {
+                    continue;
+                }
+
+                if (bulk == null || bulk.numberOfActions() >= config.getAuditBulkSize()) {
+                    bulk = client.prepareBulk();
+                    bulks.add(bulk);
+                }
+
+                bulk.add(client.prepareIndex(config.getAuditIndexName(), "audit").setSource(toSource(entry.getKey(), entry.getValue(), count, nodeName)));
+            }
+        } catch (Exception e) {
+            failed.increment();
+            log.warn("Unable to collect tenant audit events", e);
+        }
+
+        execute(bulks, 0);
+    }
+
+    private void execute(final List<BulkRequestBuilder> bulks, final int index) {
+
+        if (index >= bulks.size()) {
+            flushing.set(false);
+            return;
+        }
+
+        final BulkRequestBuilder bulk = bulks.get(index);
+
+        try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            bulk.execute(new ActionListener<BulkResponse>() {
+
+                @Override
+                public void onResponse(final BulkResponse response) {
+                    int failures = 0;
+
+                    for (BulkItemResponse item : response.getItems()) {
+                        if (item.isFailed()) {
+                            failures++;
+                        }
+                    }
+
+                    written.add(response.getItems().length - failures);
+
+                    if (failures > 0) {
+                        failed.add(failures);
+                        log.warn("Unable to write {} tenant audit events: {}", failures, response.buildFailureMessage());
+                    }
+
+                    execute(bulks, index + 1);
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    failed.add(bulk.numberOfActions());
+                    log.warn("Unable to write {} tenant audit events", bulk.numberOfActions(), e);
+                    execute(bulks, index + 1);
+                }
+            });
+        } catch (Exception e) {
+            flushing.set(false);
+            failed.add(bulk.numberOfActions());
+            log.warn("Unable to write tenant audit events", e);
+        }
+    }
+
+    private String nodeName() {
+        final DiscoveryNode localNode = clusterService == null ? null : clusterService.localNode();
+        return localNode == null ? null : localNode.getName();
+    }
+
+    private static XContentBuilder toSource(final Key key, final Event event, final long count, final String nodeName) throws IOException {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        builder.field("@timestamp", event.first);
+        builder.field("last_timestamp", event.last);
+        builder.field("type", key.type.fieldValue);
+        builder.field("tenant", key.tenant);
+        builder.field("user", key.user);
+        builder.field("count", count);
+        builder.field("node", nodeName);
+        return builder.endObject();
+    }
+
+    int pendingEvents() {
+        return pending.size();
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.field("enabled", isEnabled());
+        builder.field("pending", pending.size());
+        builder.field("recorded", recorded.sum());
+        builder.field("dropped", dropped.sum());
+        builder.field("written", written.sum());
+        builder.field("failed", failed.sum());
+        return builder;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.close.CloseIndexResponse;
+import org.elasticsearch.action.admin.indices.open.OpenIndexResponse;
+import org.elasticsearch.action.admin.indices.stats.CommonStats;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Closes tenant indices which were not used for a configurable time and reopens them on demand.
+ * <p>
+ * The interceptor records the last access of every tenant index on this node. Because other nodes do not
+ * see these accesses, only the elected master closes indices and it additionally treats every change of the
+ * get, search and indexing counters of an index (from the indices stats) as an access. A closed tenant index
+ * is reopened as soon as a request is routed to it, concurrent reopens of the same index are coalesced and the
+ * requests wait for the reopen.
+ * <p>
+ * Shrinking is not offered, tenant indices only have one primary shard already.
+ */
+final class TenantIndexLifecycle {
+
+    private static final int MAX_TRACKED = 100_000;
+    private static final int MAX_CLOSE_BATCH = 100;
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final ClusterService clusterService;
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final TenantIndexRegistry registry;
+    private final Map<String, AtomicLong> lastAccess = new ConcurrentHashMap<>();
+    private final Map<String, Long> operationCounts = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Void>> reopening = new ConcurrentHashMap<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile MultitenancyConfig config;
+    private Cancellable task;
+
+    TenantIndexLifecycle(final ClusterService clusterService, final Client client, final ThreadPool threadPool, final TenantIndexRegistry registry) {
+        this.clusterService = clusterService;
+        this.client = client;
+        this.threadPool = threadPool;
+        this.registry = registry;
+    }
+
+    /**
+     * (Re)starts or stops closing idle tenant indices according to the given configuration
+     */
+    synchronized void configure(final MultitenancyConfig config) {
+        this.config = config;
+
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+
+        if (config.getCloseIdleTenantIndicesAfter().millis() > 0 && threadPool != null && client != null) {
+            task = threadPool.scheduleWithFixedDelay(this::closeIdleIndices, config.getIdleCheckInterval(), ThreadPool.Names.GENERIC);
+        } else {
+            lastAccess.clear();
+            operationCounts.clear();
+        }
+    }
+
+    boolean isEnabled() {
+        final MultitenancyConfig config = this.config;
+        return config != null && config.getCloseIdleTenantIndicesAfter().millis() > 0;
+    }
+
+    void onAccess(final String tenantIndexName) {
+        if (isEnabled()) {
+            touch(tenantIndexName, now());
+        }
+    }
+
+    /**
+     * Reopens the given closed tenant index unless it is already being reopened and waits for the reopen
+     *
+     * @return true if the index was opened within the timeout
+     */
+    boolean awaitReopen(final String tenantIndexName, final TimeValue timeout) {
+        try {
+            reopen(tenantIndexName).get(timeout.millis(), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reopens the given closed tenant index in the background unless it is already being reopened
+     *
+     * @return completed once the index is open, concurrent callers get the same future
+     */
+    CompletableFuture<Void> reopen(final String tenantIndexName) {
+        final CompletableFuture<Void> reopened = new CompletableFuture<>();
+
+        if (client == null) {
+            reopened.completeExceptionally(new IllegalStateException("No client to reopen " + tenantIndexName));
+            return reopened;
+        }
+
+        final CompletableFuture<Void> pending = reopening.putIfAbsent(tenantIndexName, reopened);
+
+        if (pending != null) {
+            return pending;
+        }
+
+        log.info("Reopen closed tenant index {}", tenantIndexName);
+
+        try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            client.admin().indices().prepareOpen(tenantIndexName).execute(new ActionListener<OpenIndexResponse>() {
+
+                @Override
+                public void onResponse(final OpenIndexResponse response) {
+                    reopening.remove(tenantIndexName);
+                    reopened.complete(null);
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    reopening.remove(tenantIndexName);
+                    log.warn("Unable to reopen tenant index {}", tenantIndexName, e);
+                    reopened.completeExceptionally(e);
+                }
+            });
+        } catch (Exception e) {
+            reopening.remove(tenantIndexName);
+            log.warn("Unable to reopen tenant index {}", tenantIndexName, e);
+            reopened.completeExceptionally(e);
+        }
+
+        return reopened;
+    }
+
+    private void touch(final String tenantIndexName, final long now) {
+        final AtomicLong last = lastAccess.get(tenantIndexName);
+
+        if (last != null) {
+            last.lazySet(now);
+            return;
+        }
+
+        if (lastAccess.size() >= MAX_TRACKED) {
+            //untracked indices start a new idle period, so this can not close any index early
+            lastAccess.clear();
+        }
+
+        lastAccess.computeIfAbsent(tenantIndexName, k -> new AtomicLong(now)).lazySet(now);
+    }
+
+    private void closeIdleIndices() {
+        final MultitenancyConfig config = this.config;
+        final ClusterState state = clusterService.state();
+
+        if (config == null || !state.nodes().isLocalNodeElectedMaster() || !running.compareAndSet(false, true)) {
+            return;
+        }
+
+        try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            client.admin().indices().prepareStats(config.getKibanaIndexName() + "_*")
+                    .clear()
+                    .setGet(true)
+                    .setSearch(true)
+                    .setIndexing(true)
+                    .execute(new ActionListener<IndicesStatsResponse>() {
+
+                        @Override
+                        public void onResponse(final IndicesStatsResponse response) {
+                            close(config, idleIndices(config, response));
+                        }
+
+                        @Override
+                        public void onFailure(final Exception e) {
+                            running.set(false);
+                            log.warn("Unable to get stats of tenant indices", e);
+                        }
+                    });
+        } catch (Exception e) {
+            running.set(false);
+            log.warn("Unable to close idle tenant indices", e);
+        }
+    }
+
+    private List<String> idleIndices(final MultitenancyConfig config, final IndicesStatsResponse response) {
+        final long now = now();
+        final long idleMillis = config.getCloseIdleTenantIndicesAfter().millis();
+        final List<String> idle = new ArrayList<>();
+
+        for (IndexStats stats : response.getIndices().values()) {
+            final String indexName = stats.getIndex();
+
+            if (!TenantIndexNameCache.isTenantIndexName(config.getKibanaIndexName(), indexName)
+                    || registry.state(indexName) != IndexMetaData.State.OPEN) {
+                continue;
+            }
+
+            final long operations = operations(stats.getTotal());
+            final Long previous = operationCounts.put(indexName, operations);
+            final AtomicLong last = lastAccess.get(indexName);
+
+            if (previous == null || previous.longValue() != operations || last == null) {
+                touch(indexName, now);
+            } else if (idle.size() < MAX_CLOSE_BATCH && now - last.get() >= idleMillis) {
+                idle.add(indexName);
+            }
+        }
+
+        operationCounts.keySet().retainAll(response.getIndices().keySet());
+        return idle;
+    }
+
+    private void close(final MultitenancyConfig config, final List<String> idle) {
+
+        if (idle.isEmpty()) {
+            running.set(false);
+            return;
+        }
+
+        log.info("Close tenant indices {} which were idle for more than {}", idle, config.getCloseIdleTenantIndicesAfter());
+
+        try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            client.admin().indices().prepareClose(idle.toArray(new String[0])).execute(new ActionListener<CloseIndexResponse>() {
+
+                @Override
+                public void onResponse(final CloseIndexResponse response) {
+                    idle.forEach(lastAccess::remove);
+                    idle.forEach(operationCounts::remove);
+                    running.set(false);
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    running.set(false);
+                    log.warn("Unable to close tenant indices {}", idle, e);
+                }
+            });
+        } catch (Exception e) {
+            running.set(false);
+            log.warn("Unable to close tenant indices {}", idle, e);
+        }
+    }
+
+    private static long operations(final CommonStats stats) {
+        long operations = 0;
+
+        if (stats.getGet() != null) {
+            operations += stats.getGet().getCount();
+        }
+
+        if (stats.getSearch() != null) {
+            operations += stats.getSearch().getTotal().getQueryCount();
+        }
+
+        if (stats.getIndexing() != null) {
+            operations += stats.getIndexing().getTotal().getIndexCount() + stats.getIndexing().getTotal().getDeleteCount();
+        }
+
+        return operations;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
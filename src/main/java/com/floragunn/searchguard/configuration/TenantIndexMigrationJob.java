@@ -0,0 +1,681 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.open.OpenIndexResponse;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+
+/**
+ * Migrates the tenant indices of a former kibana index name (for example after a Kibana upgrade) to the
+ * tenant indices of the current kibana index name.
+ * <p>
+ * The job is started by setting <code>searchguard.dynamic.kibana.migration.source_index</code> in the dynamic
+ * configuration, through the REST API of Search Guard or sgadmin, and runs on the elected master only. There is
+ * no REST endpoint of its own because this module is loaded by Search Guard as an interceptor and can not
+ * register REST handlers. The progress can be read from the checkpoint index. Every interval the tenant indices
+ * of the source index name are enumerated from the cluster state. Up to <code>migration.concurrency</code>
+ * indices are copied in parallel, each with <code>migration.slices</code> sliced scrolls whose batches are
+ * written with the version of the source document as external version, so a document is only overwritten by a
+ * newer version and documents updated by users in the new index in the meantime are kept. All batches share one
+ * throttle of <code>migration.docs_per_second</code>.
+ * <p>
+ * The progress of every index is checkpointed in <code>migration.checkpoint_index</code> after each completed
+ * slice, so an interrupted migration resumes with the slices still missing. The source index is kept unless
+ * <code>migration.swap_alias</code> is enabled. Then, once all slices are copied, writes to the source index are
+ * blocked and all slices are copied once more, which picks up documents created or updated after their slice
+ * was checkpointed. Deletes can not be told apart from documents created in the new index, so the swap fails
+ * unless both indices have the same number of documents. Only then the source index is atomically replaced by an
+ * alias of the same name pointing to the new index, which also excludes it from the next enumeration. A failed or
+ * stopped verification lifts the block.
+ */
+final class TenantIndexMigrationJob {
+
+    static final String CHECKPOINT_TYPE = "checkpoint";
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final ClusterService clusterService;
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong throttledUntil = new AtomicLong(System.nanoTime());
+    private final AtomicLong copiedDocs = new AtomicLong();
+    private volatile MultitenancyConfig config;
+    private Cancellable task;
+
+    TenantIndexMigrationJob(final ClusterService clusterService, final Client client, final ThreadPool threadPool) {
+        this.clusterService = clusterService;
+        this.client = client;
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Starts or stops the job according to the given configuration. Running copies stop after their current batch.
+     */
+    synchronized void configure(final MultitenancyConfig config) {
+        final boolean enabled = config.getMigrationSourceIndex() != null && threadPool != null && client != null;
+        this.config = enabled ? config : null;
+
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+
+        if (enabled) {
+            log.info("Migrate tenant indices of {} to {} every {}", config.getMigrationSourceIndex(), config.getKibanaIndexName(),
+                    config.getMigrationInterval());
+            task = threadPool.scheduleWithFixedDelay(this::run, config.getMigrationInterval(), ThreadPool.Names.GENERIC);
+        }
+    }
+
+    /**
+     * @return name of the tenant index of the current kibana index which replaces the given one of the source index
+     */
+    static String targetIndexName(final MultitenancyConfig config, final String sourceIndexName) {
+        return config.getKibanaIndexName() + sourceIndexName.substring(config.getMigrationSourceIndex().length());
+    }
+
+    /**
+     * @return names of the tenant indices of the source kibana index, aliases are not listed so swapped indices are skipped
+     */
+    static List<String> sourceIndices(final MultitenancyConfig config, final ClusterState state) {
+        final List<String> sources = new ArrayList<>();
+
+        for (ObjectObjectCursor<String, IndexMetaData> index : state.metaData().indices()) {
+            //the tenant indices of .kibana_6 also have the format of those of .kibana, but sanitized tenant names never contain
+            //an underscore, so a tenant index of the current kibana index is never one of the source
+            if (TenantIndexNameCache.isTenantIndexName(config.getMigrationSourceIndex(), index.key)
+                    && !TenantIndexNameCache.isTenantIndexName(config.getKibanaIndexName(), index.key)) {
+                sources.add(index.key);
+            }
+        }
+
+        return sources;
+    }
+
+    private void run() {
+        final MultitenancyConfig config = this.config;
+
+        if (config == null || !clusterService.state().nodes().isLocalNodeElectedMaster() || !running.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Queue<String> pending = new ConcurrentLinkedQueue<>(sourceIndices(config, clusterService.state()));
+
+        if (pending.isEmpty()) {
+            running.set(false);
+            return;
+        }
+
+        log.info("Migrate {} tenant indices of {} to {}", pending.size(), config.getMigrationSourceIndex(), config.getKibanaIndexName());
+
+        final int workers = Math.min(config.getMigrationConcurrency(), pending.size());
+        final AtomicInteger active = new AtomicInteger(workers);
+
+        for (int i = 0; i < workers; i++) {
+            next(config, pending, active);
+        }
+    }
+
+    private void next(final MultitenancyConfig config, final Queue<String> pending, final AtomicInteger active) {
+        //a configuration change stops the run, the next run picks up the new configuration
+        final String source = this.config == config ? pending.poll() : null;
+
+        if (source == null) {
+            if (active.decrementAndGet() == 0) {
+                running.set(false);
+                log.info("Tenant index migration run finished, {} documents copied so far", copiedDocs.get());
+            }
+            return;
+        }
+
+        try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            new IndexMigration(config, source, () -> next(config, pending, active)).start();
+        } catch (Exception e) {
+            log.warn("Unable to migrate tenant index {}", source, e);
+            next(config, pending, active);
+        }
+    }
+
+    /**
+     * Reserves the time for copying the given number of documents
+     *
+     * @return nanoseconds to wait before copying them
+     */
+    private long throttle(final MultitenancyConfig config, final int docs) {
+        final double docsPerSecond = config.getMigrationDocsPerSecond();
+
+        if (docsPerSecond <= 0) {
+            return 0;
+        }
+
+        final long cost = (long) (docs * TimeUnit.SECONDS.toNanos(1) / docsPerSecond);
+        final long now = System.nanoTime();
+        long current;
+        long start;
+
+        do {
+            current = throttledUntil.get();
+            start = Math.max(current, now);
+        } while (!throttledUntil.compareAndSet(current, start + cost));
+
+        return start - now;
+    }
+
+    /**
+     * Copy of one tenant index, slices run in parallel
+     */
+    private final class IndexMigration {
+        private final MultitenancyConfig config;
+        private final String source;
+        private final String target;
+        private final Runnable onDone;
+        private final int slices;
+        private final Set<Integer> completedSlices = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger remainingSlices = new AtomicInteger();
+        private final AtomicLong copied = new AtomicLong();
+        private volatile Exception failure;
+        private volatile boolean verifying;
+        private volatile boolean countsVerified;
+
+        private IndexMigration(final MultitenancyConfig config, final String source, final Runnable onDone) {
+            this.config = config;
+            this.source = source;
+            this.target = targetIndexName(config, source);
+            this.onDone = onDone;
+            this.slices = config.getMigrationSlices();
+        }
+
+        private void start() {
+            client.prepareGet(config.getMigrationCheckpointIndex(), CHECKPOINT_TYPE, source).execute(new ActionListener<GetResponse>() {
+
+                @Override
+                public void onResponse(final GetResponse response) {
+                    if (response.isExists()) {
+                        final Map<String, Object> checkpoint = response.getSourceAsMap();
+
+                        //without the alias swap the source is kept, so it is enumerated again after it was migrated,
+                        //skip it before an index closed by the idle policy is reopened
+                        if (!config.isMigrationSwapAlias() && "done".equals(checkpoint.get("status")) && target.equals(checkpoint.get("target"))) {
+                            onDone.run();
+                            return;
+                        }
+
+                        resume(checkpoint);
+                    }
+                    openSource();
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    //no checkpoint index yet
+                    openSource();
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private void resume(final Map<String, Object> checkpoint) {
+            final Object checkpointSlices = checkpoint.get("slices");
+            final Object completed = checkpoint.get("completed_slices");
+
+            //slices of a different slice count cover different documents
+            if (checkpointSlices instanceof Number && ((Number) checkpointSlices).intValue() == slices && completed instanceof List) {
+                for (Object slice : (List<Object>) completed) {
+                    completedSlices.add(((Number) slice).intValue());
+                }
+            }
+
+            if (checkpoint.get("copied") instanceof Number) {
+                copied.set(((Number) checkpoint.get("copied")).longValue());
+            }
+
+            if (!completedSlices.isEmpty()) {
+                log.info("Resume migration of {} to {}, slices {} of {} already copied", source, target, completedSlices, slices);
+            }
+        }
+
+        private void openSource() {
+            final IndexMetaData sourceMetaData = clusterService.state().metaData().index(source);
+
+            if (sourceMetaData == null) {
+                done(null);
+                return;
+            }
+
+            if (sourceMetaData.getState() == IndexMetaData.State.OPEN) {
+                createTarget(sourceMetaData);
+                return;
+            }
+
+            //closed by an idle policy, reopen it for the copy
+            client.admin().indices().prepareOpen(source).setWaitForActiveShards(1).execute(new ActionListener<OpenIndexResponse>() {
+
+                @Override
+                public void onResponse(final OpenIndexResponse response) {
+                    createTarget(sourceMetaData);
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    done(e);
+                }
+            });
+        }
+
+        private void createTarget(final IndexMetaData sourceMetaData) {
+
+            if (clusterService.state().metaData().hasIndex(target)) {
+                copySlices();
+                return;
+            }
+
+            final CreateIndexRequestBuilder create = client.admin().indices().prepareCreate(target).setSettings(config.getTenantIndexSettings());
+
+            for (ObjectObjectCursor<String, MappingMetaData> mapping : sourceMetaData.getMappings()) {
+                create.addMapping(mapping.key, mapping.value.sourceAsMap());
+            }
+
+            create.execute(new ActionListener<CreateIndexResponse>() {
+
+                @Override
+                public void onResponse(final CreateIndexResponse response) {
+                    copySlices();
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    if (e instanceof ResourceAlreadyExistsException) {
+                        copySlices();
+                    } else {
+                        done(e);
+                    }
+                }
+            });
+        }
+
+        private void copySlices() {
+            final List<Integer> missing = new ArrayList<>(slices);
+
+            for (int slice = 0; slice < slices; slice++) {
+                if (!completedSlices.contains(slice)) {
+                    missing.add(slice);
+                }
+            }
+
+            if (missing.isEmpty()) {
+                swap();
+                return;
+            }
+
+            remainingSlices.set(missing.size());
+
+            for (int slice : missing) {
+                final SearchRequestBuilder search = client.prepareSearch(source)
+                        .setScroll(SCROLL_KEEP_ALIVE)
+                        .setSize(config.getMigrationBatchSize())
+                        .setVersion(true)
+                        .addSort("_doc", SortOrder.ASC);
+
+                if (slices > 1) {
+                    search.slice(new SliceBuilder(slice, slices));
+                }
+
+                search.execute(scrollListener(slice));
+            }
+        }
+
+        private ActionListener<SearchResponse> scrollListener(final int slice) {
+            return new ActionListener<SearchResponse>() {
+
+                @Override
+                public void onResponse(final SearchResponse response) {
+                    final SearchHit[] hits = response.getHits().getHits();
+
+                    if (hits.length == 0 || failure != null || TenantIndexMigrationJob.this.config != config) {
+                        clearScroll(response.getScrollId());
+                        sliceDone(slice, hits.length == 0 ? null : failure);
+                        return;
+                    }
+
+                    final long delay = throttle(config, hits.length);
+
+                    if (delay > 0) {
+                        threadPool.schedule(TimeValue.timeValueNanos(delay), ThreadPool.Names.GENERIC, () -> copy(slice, response));
+                    } else {
+                        copy(slice, response);
+                    }
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    sliceDone(slice, e);
+                }
+            };
+        }
+
+        private void copy(final int slice, final SearchResponse response) {
+            final BulkRequestBuilder bulk = client.prepareBulk();
+
+            //kibana documents are always json
+            for (SearchHit hit : response.getHits().getHits()) {
+                bulk.add(new IndexRequest(target, hit.getType(), hit.getId())
+                        .version(hit.getVersion())
+                        .versionType(VersionType.EXTERNAL)
+                        .source(hit.getSourceRef(), XContentType.JSON));
+            }
+
+            try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+                bulk.execute(new ActionListener<BulkResponse>() {
+
+                    @Override
+                    public void onResponse(final BulkResponse bulkResponse) {
+                        int created = 0;
+
+                        for (BulkItemResponse item : bulkResponse.getItems()) {
+                            if (!item.isFailed()) {
+                                created++;
+                            } else if (item.getFailure().getStatus() != RestStatus.CONFLICT) {
+                                //documents which already exist in the same or a newer version were copied before or updated by users meanwhile
+                                clearScroll(response.getScrollId());
+                                sliceDone(slice, new IllegalStateException("Unable to copy documents: " + bulkResponse.buildFailureMessage()));
+                                return;
+                            }
+                        }
+
+                        copied.addAndGet(created);
+                        copiedDocs.addAndGet(created);
+                        client.prepareSearchScroll(response.getScrollId())
+                                .setScroll(SCROLL_KEEP_ALIVE)
+                                .execute(scrollListener(slice));
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e) {
+                        clearScroll(response.getScrollId());
+                        sliceDone(slice, e);
+                    }
+                });
+            } catch (Exception e) {
+                clearScroll(response.getScrollId());
+                sliceDone(slice, e);
+            }
+        }
+
+        private void sliceDone(final int slice, final Exception e) {
+
+            if (e != null) {
+                failure = e;
+            } else if (TenantIndexMigrationJob.this.config == config) {
+                completedSlices.add(slice);
+            }
+
+            if (remainingSlices.decrementAndGet() > 0) {
+                //checkpoint completed slices while the others are still copying
+                if (e == null) {
+                    checkpoint("running", null, null);
+                }
+                return;
+            }
+
+            if (failure != null) {
+                done(failure);
+            } else if (completedSlices.size() < slices) {
+                //stopped by a configuration change
+                unblockSource(() -> checkpoint("stopped", null, onDone));
+            } else {
+                swap();
+            }
+        }
+
+        private void swap() {
+
+            if (!config.isMigrationSwapAlias()) {
+                done(null);
+                return;
+            }
+
+            if (!verifying) {
+                verify();
+                return;
+            }
+
+            if (!countsVerified) {
+                verifyCounts();
+                return;
+            }
+
+            //the alias takes the name of the source index, so clients still using the old name read the new index
+            client.admin().indices().prepareAliases()
+                    .addAliasAction(AliasActions.removeIndex().index(source))
+                    .addAliasAction(AliasActions.add().index(target).alias(source))
+                    .execute(new ActionListener<IndicesAliasesResponse>() {
+
+                        @Override
+                        public void onResponse(final IndicesAliasesResponse response) {
+                            done(null);
+                        }
+
+                        @Override
+                        public void onFailure(final Exception e) {
+                            done(e);
+                        }
+                    });
+        }
+
+        /**
+         * Blocks writes to the source and copies all slices again, documents copied before in the same version are skipped as conflicts
+         */
+        private void verify() {
+            verifying = true;
+
+            client.admin().indices().prepareUpdateSettings(source)
+                    .setSettings(Settings.builder().put(IndexMetaData.SETTING_BLOCKS_WRITE, true))
+                    .execute(new ActionListener<UpdateSettingsResponse>() {
+
+                        @Override
+                        public void onResponse(final UpdateSettingsResponse response) {
+                            log.info("Verify migration of {} to {} before replacing it by an alias", source, target);
+                            completedSlices.clear();
+                            copySlices();
+                        }
+
+                        @Override
+                        public void onFailure(final Exception e) {
+                            done(e);
+                        }
+                    });
+        }
+
+        /**
+         * Compares the number of documents of both indices once the source is blocked and all slices are copied again
+         */
+        private void verifyCounts() {
+            client.admin().indices().prepareRefresh(source, target).execute(new ActionListener<RefreshResponse>() {
+
+                @Override
+                public void onResponse(final RefreshResponse response) {
+                    count(source, sourceCount -> count(target, targetCount -> {
+                        if (sourceCount != targetCount) {
+                            done(new IllegalStateException("Source index " + source + " has " + sourceCount + " documents but target index "
+                                    + target + " has " + targetCount + ", documents were deleted from the source or created in the target"));
+                        } else {
+                            countsVerified = true;
+                            swap();
+                        }
+                    }));
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    done(e);
+                }
+            });
+        }
+
+        private void count(final String index, final LongConsumer then) {
+            client.prepareSearch(index).setSize(0).execute(new ActionListener<SearchResponse>() {
+
+                @Override
+                public void onResponse(final SearchResponse response) {
+                    then.accept(response.getHits().getTotalHits());
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    done(e);
+                }
+            });
+        }
+
+        private void unblockSource(final Runnable then) {
+
+            if (!verifying) {
+                then.run();
+                return;
+            }
+
+            client.admin().indices().prepareUpdateSettings(source)
+                    .setSettings(Settings.builder().putNull(IndexMetaData.SETTING_BLOCKS_WRITE))
+                    .execute(new ActionListener<UpdateSettingsResponse>() {
+
+                        @Override
+                        public void onResponse(final UpdateSettingsResponse response) {
+                            then.run();
+                        }
+
+                        @Override
+                        public void onFailure(final Exception e) {
+                            log.error("Unable to lift the write block of tenant index {}", source, e);
+                            then.run();
+                        }
+                    });
+        }
+
+        private void done(final Exception e) {
+            if (e != null) {
+                log.warn("Unable to migrate tenant index {} to {}, will retry on the next run", source, target, e);
+                unblockSource(() -> checkpoint("failed", e.toString(), onDone));
+            } else {
+                log.info("Migrated tenant index {} to {} ({} documents)", source, target, copied.get());
+                checkpoint("done", null, onDone);
+            }
+        }
+
+        private void checkpoint(final String status, final String failureMessage, final Runnable then) {
+            final Map<String, Object> checkpoint = new HashMap<>();
+            checkpoint.put("source", source);
+            checkpoint.put("target", target);
+            checkpoint.put("status", status);
+            checkpoint.put("slices", slices);
+            checkpoint.put("completed_slices", new ArrayList<>(new TreeSet<>(completedSlices)));
+            checkpoint.put("copied", copied.get());
+            final long now = System.currentTimeMillis();
+            checkpoint.put("updated", now);
+
+            if (failureMessage != null) {
+                checkpoint.put("failure", failureMessage);
+            }
+
+            try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+                //slices checkpoint concurrently, the external version lets a late write never replace a newer checkpoint
+                client.prepareIndex(config.getMigrationCheckpointIndex(), CHECKPOINT_TYPE, source).setSource(checkpoint)
+                        .setVersion(now)
+                        .setVersionType(VersionType.EXTERNAL_GTE)
+                        .execute(new ActionListener<IndexResponse>() {
+
+                            @Override
+                            public void onResponse(final IndexResponse response) {
+                                if (then != null) {
+                                    then.run();
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(final Exception e) {
+                                if (!(e instanceof VersionConflictEngineException)) {
+                                    log.warn("Unable to checkpoint migration of tenant index {}", source, e);
+                                }
+                                if (then != null) {
+                                    then.run();
+                                }
+                            }
+                        });
+            } catch (Exception e) {
+                log.warn("Unable to checkpoint migration of tenant index {}", source, e);
+                if (then != null) {
+                    then.run();
+                }
+            }
+        }
+    }
+
+    private void clearScroll(final String scrollId) {
+        if (scrollId != null) {
+            client.prepareClearScroll().addScrollId(scrollId).execute(ActionListener.wrap(r -> {}, e -> {}));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elasticsearch.ElasticsearchException;
+
+/**
+ * Bounded cache for the tenant index names of one kibana index.
+ * Instances are owned by a {@link MultitenancyConfig} snapshot, so all entries
+ * are dropped together with the snapshot when the configuration changes.
+ * <p>
+ * Lookups are plain {@link ConcurrentHashMap} reads, so a hit neither locks nor allocates.
+ * If the cache is full it is cleared and refilled by subsequent requests.
+ */
+final class TenantIndexNameCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    private final String kibanaIndexName;
+    private final int maxEntries;
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+
+    TenantIndexNameCache(final String kibanaIndexName, final int maxEntries) {
+        this.kibanaIndexName = kibanaIndexName;
+        this.maxEntries = maxEntries;
+    }
+
+    String getKibanaIndexName() {
+        return kibanaIndexName;
+    }
+
+    String toUserIndexName(final String tenant) {
+
+        if(tenant == null) {
+            throw new ElasticsearchException("tenant must not be null here");
+        }
+
+        String indexName = cache.get(tenant);
+
+        if(indexName == null) {
+            indexName = compute(kibanaIndexName, tenant);
+
+            if (cache.size() >= maxEntries) {
+                cache.clear();
+            }
+
+            final String existing = cache.putIfAbsent(tenant, indexName);
+
+            if (existing != null) {
+                indexName = existing;
+            }
+        }
+
+        return indexName;
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return true if the given index name has the format of the names returned by {@link #compute(String, String)}
+     */
+    static boolean isTenantIndexName(final String originalKibanaIndex, final String indexName) {
+
+        if (indexName.length() <= originalKibanaIndex.length() + 2 || !indexName.startsWith(originalKibanaIndex)
+                || indexName.charAt(originalKibanaIndex.length()) != '_') {
+            return false;
+        }
+
+        int i = originalKibanaIndex.length() + 1;
+
+        if (indexName.charAt(i) == '-') {
+            i++;
+        }
+
+        final int digits = i;
+
+        while (i < indexName.length() && indexName.charAt(i) >= '0' && indexName.charAt(i) <= '9') {
+            i++;
+        }
+
+        return i > digits && i < indexName.length() && indexName.charAt(i) == '_';
+    }
+
+    /**
+     * Same result as <code>originalKibanaIndex+"_"+tenant.hashCode()+"_"+tenant.toLowerCase().replaceAll("[^a-z0-9]+","")</code>
+     * but without regex matching
+     */
+    static String compute(final String originalKibanaIndex, final String tenant) {
+
+        if(tenant == null) {
+            throw new ElasticsearchException("tenant must not be null here");
+        }
+
+        final String lowerCaseTenant = tenant.toLowerCase();
+        final StringBuilder sb = new StringBuilder(originalKibanaIndex.length() + lowerCaseTenant.length() + 13);
+        sb.append(originalKibanaIndex).append('_').append(tenant.hashCode()).append('_');
+
+        for (int i = 0; i < lowerCaseTenant.length(); i++) {
+            final char c = lowerCaseTenant.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexTemplateMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+
+/**
+ * Creates the kibana indices of tenants in the background before users write into them.
+ * <p>
+ * Tenants are discovered from the requests of users: the first request of a user enqueues all
+ * tenants the user is allowed to access including the private tenant. Missing indices are created one
+ * after another in batches of limited size, so there is no burst of cluster state updates.
+ * The indices get the mappings of the kibana index and the settings of the tenant index template.
+ * <p>
+ * Only the elected master enqueues and creates indices and puts the template, so the nodes do not race
+ * each other with the same cluster state updates. Indices of tenants only requested through other nodes
+ * are created on the first write as before.
+ */
+final class TenantIndexProvisioner {
+
+    static final String TEMPLATE_NAME = "searchguard_kibana_tenants";
+    private static final int MAX_QUEUED = 10_000;
+    private static final int MAX_SEEN_USERS = 100_000;
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final ClusterService clusterService;
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Set<String> seenUsers = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile MultitenancyConfig config;
+    private Cancellable task;
+
+    TenantIndexProvisioner(final ClusterService clusterService, final Client client, final ThreadPool threadPool) {
+        this.clusterService = clusterService;
+        this.client = client;
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * (Re)starts or stops the background creation according to the given configuration
+     */
+    synchronized void configure(final MultitenancyConfig config) {
+        this.config = config;
+        seenUsers.clear();
+
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+
+        if (config.isProvisionTenantIndices() && threadPool != null && client != null) {
+            task = threadPool.scheduleWithFixedDelay(this::provisionBatch, config.getProvisionInterval(), ThreadPool.Names.GENERIC);
+        } else {
+            queue.clear();
+            queued.clear();
+        }
+    }
+
+    /**
+     * Enqueues the requested tenant index if it does not exist yet and, if the user was
+     * not seen before, the indices of all tenants the user is allowed to access
+     */
+    void onRequest(final String username, final Map<String, Boolean> tenants, final String tenantIndexName) {
+        final MultitenancyConfig config = this.config;
+
+        if (config == null || !config.isProvisionTenantIndices()) {
+            return;
+        }
+
+        final ClusterState state = clusterService.state();
+
+        if (!state.nodes().isLocalNodeElectedMaster()) {
+            return;
+        }
+
+        enqueue(state, tenantIndexName);
+
+        if (!seenUsers.add(username)) {
+            return;
+        }
+
+        if (seenUsers.size() > MAX_SEEN_USERS) {
+            seenUsers.clear();
+        }
+
+        enqueue(state, config.toPrivateIndexName(username));
+
+        for (String tenant : tenants.keySet()) {
+            //indices of pattern grants are created on the first request to a concrete tenant,
+            //the grant named like the user is the one of the private tenant
+            if (!TenantMatcher.isPattern(tenant) && !tenant.equals(username) && !MultitenancyConfig.isReservedTenantName(tenant)) {
+                enqueue(state, config.toUserIndexName(tenant));
+            }
+        }
+    }
+
+    /**
+     * Enqueues the given index if it does not exist yet, used for the shared tenant index
+     */
+    void onRequest(final String indexName) {
+        final MultitenancyConfig config = this.config;
+
+        if (config == null || !config.isProvisionTenantIndices()) {
+            return;
+        }
+
+        final ClusterState state = clusterService.state();
+
+        if (state.nodes().isLocalNodeElectedMaster()) {
+            enqueue(state, indexName);
+        }
+    }
+
+    private void enqueue(final ClusterState state, final String indexName) {
+        if (state.metaData().hasIndex(indexName) || queued.size() >= MAX_QUEUED || !queued.add(indexName)) {
+            return;
+        }
+
+        queue.add(indexName);
+    }
+
+    private void provisionBatch() {
+        final MultitenancyConfig config = this.config;
+
+        if (config == null || queue.isEmpty() || !running.compareAndSet(false, true)) {
+            return;
+        }
+
+        final ClusterState state = clusterService.state();
+
+        if (!state.nodes().isLocalNodeElectedMaster()) {
+            //lost the election, the tenants are requested again on the new master
+            queue.clear();
+            queued.clear();
+            running.set(false);
+            return;
+        }
+
+        final List<String> batch = new ArrayList<>(config.getProvisionBatchSize());
+        String indexName;
+
+        while (batch.size() < config.getProvisionBatchSize() && (indexName = queue.poll()) != null) {
+            queued.remove(indexName);
+
+            if (!state.metaData().hasIndex(indexName)) {
+                batch.add(indexName);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            running.set(false);
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Will create tenant indices {}", batch);
+        }
+
+        //no user context, the indices are created on behalf of the node
+        try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            final IndexTemplateMetaData template = state.metaData().getTemplates().get(TEMPLATE_NAME);
+
+            if (template != null && template.settings().equals(config.getTenantIndexSettings())) {
+                createIndices(config, batch, 0);
+            } else {
+                putTemplate(config, batch);
+            }
+        } catch (Exception e) {
+            running.set(false);
+            log.warn("Unable to create tenant indices {}", batch, e);
+        }
+    }
+
+    private void putTemplate(final MultitenancyConfig config, final List<String> batch) {
+        client.admin().indices().preparePutTemplate(TEMPLATE_NAME)
+                .setPatterns(templatePatterns(config.getKibanaIndexName()))
+                .setOrder(0)
+                .setSettings(config.getTenantIndexSettings())
+                .execute(new ActionListener<PutIndexTemplateResponse>() {
+
+                    @Override
+                    public void onResponse(final PutIndexTemplateResponse response) {
+                        createIndices(config, batch, 0);
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e) {
+                        log.warn("Unable to put index template {} for tenant indices", TEMPLATE_NAME, e);
+                        createIndices(config, batch, 0);
+                    }
+                });
+    }
+
+    /**
+     * @return the patterns of the tenant index names accepted by {@link TenantIndexNameCache#isTenantIndexName},
+     * <code>&lt;kibana&gt;_[-]&lt;digits&gt;_*</code>, so other indices like <code>.kibana_1</code> or
+     * <code>.kibana_task_manager</code> do not get the settings of the tenant indices
+     */
+    static List<String> templatePatterns(final String kibanaIndexName) {
+        final List<String> patterns = new ArrayList<>(20);
+
+        for (char digit = '0'; digit <= '9'; digit++) {
+            patterns.add(kibanaIndexName + "_" + digit + "*_*");
+            patterns.add(kibanaIndexName + "_-" + digit + "*_*");
+        }
+
+        return patterns;
+    }
+
+    private void createIndices(final MultitenancyConfig config, final List<String> batch, final int pos) {
+
+        if (pos >= batch.size()) {
+            running.set(false);
+            return;
+        }
+
+        final String indexName = batch.get(pos);
+
+        client.admin().indices().create(createIndexRequest(config, indexName), new ActionListener<CreateIndexResponse>() {
+
+            @Override
+            public void onResponse(final CreateIndexResponse response) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Created tenant index {}", indexName);
+                }
+                createIndices(config, batch, pos + 1);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                if (!(e instanceof ResourceAlreadyExistsException)) {
+                    log.warn("Unable to create tenant index {}", indexName, e);
+                }
+                createIndices(config, batch, pos + 1);
+            }
+        });
+    }
+
+    private CreateIndexRequest createIndexRequest(final MultitenancyConfig config, final String indexName) {
+        final CreateIndexRequest request = new CreateIndexRequest(indexName);
+        final IndexMetaData kibanaIndex = clusterService.state().metaData().index(config.getKibanaIndexName());
+
+        if (kibanaIndex != null) {
+            for (ObjectObjectCursor<String, MappingMetaData> mapping : kibanaIndex.getMappings()) {
+                request.mapping(mapping.key, mapping.value.sourceAsMap());
+            }
+        }
+
+        return request;
+    }
+}
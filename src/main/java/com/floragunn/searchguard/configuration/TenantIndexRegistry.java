@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+
+/**
+ * Node local registry of the existing tenant indices of one kibana index.
+ * <p>
+ * The registry is rebuilt from the cluster state whenever the metadata changes and published as
+ * an immutable snapshot, so lookups are a single hash map read.
+ */
+final class TenantIndexRegistry implements ClusterStateListener {
+
+    private volatile Snapshot snapshot = new Snapshot(null, -1, Collections.emptyMap());
+
+    private static final class Snapshot {
+        private final String prefix;
+        private final long metaDataVersion;
+        private final Map<String, IndexMetaData.State> indices;
+
+        private Snapshot(final String prefix, final long metaDataVersion, final Map<String, IndexMetaData.State> indices) {
+            this.prefix = prefix;
+            this.metaDataVersion = metaDataVersion;
+            this.indices = indices;
+        }
+    }
+
+    /**
+     * Tracks the tenant indices of the given kibana index from now on
+     */
+    synchronized void configure(final String kibanaIndexName, final ClusterState state) {
+        final String prefix = kibanaIndexName + "_";
+
+        if (!prefix.equals(snapshot.prefix)) {
+            snapshot = build(prefix, state);
+        }
+    }
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+        if (event.metaDataChanged()) {
+            update(event.state());
+        }
+    }
+
+    synchronized void update(final ClusterState state) {
+        final Snapshot current = snapshot;
+
+        if (current.prefix != null && current.metaDataVersion != state.metaData().version()) {
+            snapshot = build(current.prefix, state);
+        }
+    }
+
+    /**
+     * @return false only if the given tenant index is known to not exist
+     */
+    boolean exists(final String tenantIndexName) {
+        final Snapshot current = snapshot;
+        return current.prefix == null || current.indices.containsKey(tenantIndexName) || !tenantIndexName.startsWith(current.prefix);
+    }
+
+    /**
+     * @return the state of the given tenant index or null if it does not exist
+     */
+    IndexMetaData.State state(final String tenantIndexName) {
+        return snapshot.indices.get(tenantIndexName);
+    }
+
+    int size() {
+        return snapshot.indices.size();
+    }
+
+    private static Snapshot build(final String prefix, final ClusterState state) {
+        final Map<String, IndexMetaData.State> indices = new HashMap<>();
+
+        for (ObjectCursor<IndexMetaData> cursor : state.metaData().indices().values()) {
+            final IndexMetaData index = cursor.value;
+
+            if (index.getIndex().getName().startsWith(prefix)) {
+                indices.put(index.getIndex().getName(), index.getState());
+            }
+        }
+
+        return new Snapshot(prefix, state.metaData().version(), Collections.unmodifiableMap(indices));
+    }
+}
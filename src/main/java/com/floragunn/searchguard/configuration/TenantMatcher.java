@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+
+/**
+ * Tenant grants with wildcards (<code>team_*</code>, <code>team_?</code>) or regular expressions (<code>/team_[0-9]+/</code>)
+ * compiled into one automaton for read-write and one for read-only tenants.
+ * <p>
+ * A lookup runs the automata over the tenant name, so it is linear in the length of the name
+ * and independent of the number of patterns. Read-write wins if a tenant matches both.
+ */
+final class TenantMatcher {
+
+    private static final Logger log = LogManager.getLogger(TenantMatcher.class);
+
+    private final String[] readWritePatterns;
+    private final String[] readOnlyPatterns;
+    private final CharacterRunAutomaton readWrite;
+    private final CharacterRunAutomaton readOnly;
+
+    private TenantMatcher(final String[] readWritePatterns, final String[] readOnlyPatterns) {
+        this.readWritePatterns = readWritePatterns;
+        this.readOnlyPatterns = readOnlyPatterns;
+        this.readWrite = compile(readWritePatterns);
+        this.readOnly = compile(readOnlyPatterns);
+    }
+
+    static boolean isPattern(final String tenant) {
+        return tenant.indexOf('*') >= 0 || tenant.indexOf('?') >= 0 || (tenant.length() > 1 && tenant.startsWith("/") && tenant.endsWith("/"));
+    }
+
+    /**
+     * @return TRUE if the tenant is granted read-write, FALSE if read-only, null if not granted
+     */
+    Boolean get(final String tenant) {
+
+        if (readWrite != null && readWrite.run(tenant)) {
+            return Boolean.TRUE;
+        }
+
+        if (readOnly != null && readOnly.run(tenant)) {
+            return Boolean.FALSE;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return true if the granted tenants still contain all patterns of this matcher with the same access,
+     * looked up without a scan of the tenants. Additional patterns are not detected.
+     */
+    boolean isCompiledFrom(final Map<String, Boolean> tenants) {
+
+        for (String pattern : readWritePatterns) {
+            if (tenants.get(pattern) != Boolean.TRUE) {
+                return false;
+            }
+        }
+
+        for (String pattern : readOnlyPatterns) {
+            final Boolean readWrite = tenants.get(pattern);
+            if (readWrite == null || readWrite == Boolean.TRUE) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static CharacterRunAutomaton compile(final String[] patterns) {
+
+        if (patterns.length == 0) {
+            return null;
+        }
+
+        final List<Automaton> automata = new ArrayList<>(patterns.length);
+
+        for (String pattern : patterns) {
+            try {
+                if (pattern.startsWith("/") && pattern.endsWith("/") && pattern.length() > 1) {
+                    automata.add(new RegExp(pattern.substring(1, pattern.length() - 1)).toAutomaton());
+                } else {
+                    automata.add(WildcardQuery.toAutomaton(new Term("", pattern)));
+                }
+            } catch (IllegalArgumentException e) {
+                //logged once per configuration because the matchers are memoized
+                log.error("Ignore invalid tenant pattern {}", pattern, e);
+            }
+        }
+
+        if (automata.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return new CharacterRunAutomaton(Operations.union(automata));
+        } catch (TooComplexToDeterminizeException e) {
+            log.error("Ignore tenant patterns {} because they are too complex", Arrays.toString(patterns), e);
+            return null;
+        }
+    }
+
+    /**
+     * Memoizes the compiled matchers by the tenant patterns of a user and the matcher last used by each user.
+     * The cache is owned by a {@link MultitenancyConfig} snapshot and is therefore dropped with every configuration change.
+     */
+    static final class Cache {
+
+        private static final TenantMatcher NONE = new TenantMatcher(new String[0], new String[0]);
+
+        private final int maxEntries;
+        private final Map<Key, TenantMatcher> matchers = new ConcurrentHashMap<>();
+        private final Map<String, TenantMatcher> lastByUser = new ConcurrentHashMap<>();
+
+        Cache(final int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * Looks the tenant up with the matcher last used by the user if that matcher is still compiled from the granted
+         * tenants, so a hit neither scans the tenants nor allocates. Such a matcher only proves its own grants, the tenants
+         * may contain additional patterns by now, so anything short of the required access is looked up again with a scan.
+         *
+         * @return TRUE if the tenant is granted read-write, FALSE if read-only, null if not granted by a pattern
+         */
+        Boolean grant(final String username, final Map<String, Boolean> tenants, final String tenant, final boolean write) {
+            final TenantMatcher last = lastByUser.get(username);
+
+            if (last != null && last.isCompiledFrom(tenants)) {
+                final Boolean granted = last.get(tenant);
+
+                if (granted == Boolean.TRUE || (granted == Boolean.FALSE && !write)) {
+                    return granted;
+                }
+            }
+
+            TenantMatcher matcher = get(tenants);
+
+            if (matcher == null) {
+                matcher = NONE;
+            }
+
+            if (matcher != last) {
+                if (lastByUser.size() >= maxEntries) {
+                    lastByUser.clear();
+                }
+
+                lastByUser.put(username, matcher);
+            }
+
+            return matcher.get(tenant);
+        }
+
+        /**
+         * @return the matcher for the patterns among the granted tenants or null if there are no patterns
+         */
+        TenantMatcher get(final Map<String, Boolean> tenants) {
+            List<String> readWritePatterns = null;
+            List<String> readOnlyPatterns = null;
+
+            for (Map.Entry<String, Boolean> entry : tenants.entrySet()) {
+                if (!isPattern(entry.getKey())) {
+                    continue;
+                }
+
+                if (entry.getValue() == Boolean.TRUE) {
+                    (readWritePatterns == null ? readWritePatterns = new ArrayList<>() : readWritePatterns).add(entry.getKey());
+                } else {
+                    (readOnlyPatterns == null ? readOnlyPatterns = new ArrayList<>() : readOnlyPatterns).add(entry.getKey());
+                }
+            }
+
+            if (readWritePatterns == null && readOnlyPatterns == null) {
+                return null;
+            }
+
+            final Key key = new Key(sorted(readWritePatterns), sorted(readOnlyPatterns));
+            TenantMatcher matcher = matchers.get(key);
+
+            if (matcher == null) {
+                matcher = new TenantMatcher(key.readWrite, key.readOnly);
+
+                if (matchers.size() >= maxEntries) {
+                    matchers.clear();
+                }
+
+                matchers.put(key, matcher);
+            }
+
+            return matcher;
+        }
+
+        int size() {
+            return matchers.size();
+        }
+
+        private static String[] sorted(final List<String> patterns) {
+
+            if (patterns == null) {
+                return new String[0];
+            }
+
+            final String[] sorted = patterns.toArray(new String[0]);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    private static final class Key {
+        private final String[] readWrite;
+        private final String[] readOnly;
+        private final int hashCode;
+
+        private Key(final String[] readWrite, final String[] readOnly) {
+            this.readWrite = readWrite;
+            this.readOnly = readOnly;
+            this.hashCode = 31 * Arrays.hashCode(readWrite) + Arrays.hashCode(readOnly);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hashCode == other.hashCode && Arrays.equals(readWrite, other.readWrite) && Arrays.equals(readOnly, other.readOnly);
+        }
+    }
+}
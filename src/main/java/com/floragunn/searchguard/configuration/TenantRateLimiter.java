@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limits for the reads and writes of tenants and users.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the theoretical arrival time of the next request
+ * (generic cell rate algorithm), so acquiring a token is one CAS and never locks.
+ * A bucket allows <code>rate * burstSeconds</code> requests at once and refills with <code>rate</code> per second.
+ * <p>
+ * The limiter lives as long as the interceptor, so the buckets of limits which did not change survive configuration changes.
+ */
+final class TenantRateLimiter {
+
+    static final int MAX_KEYS = 100_000;
+
+    private volatile Limit tenantReads;
+    private volatile Limit tenantWrites;
+    private volatile Limit userReads;
+    private volatile Limit userWrites;
+
+    TenantRateLimiter() {
+    }
+
+    TenantRateLimiter(final double tenantReadsPerSecond, final double tenantWritesPerSecond, final double userReadsPerSecond,
+            final double userWritesPerSecond, final double burstSeconds) {
+        configure(tenantReadsPerSecond, tenantWritesPerSecond, userReadsPerSecond, userWritesPerSecond, burstSeconds);
+    }
+
+    void configure(final MultitenancyConfig config) {
+        configure(config.getTenantReadsPerSecond(), config.getTenantWritesPerSecond(), config.getUserReadsPerSecond(),
+                config.getUserWritesPerSecond(), config.getRateLimitBurstSeconds());
+    }
+
+    private synchronized void configure(final double tenantReadsPerSecond, final double tenantWritesPerSecond, final double userReadsPerSecond,
+            final double userWritesPerSecond, final double burstSeconds) {
+        this.tenantReads = Limit.of(tenantReadsPerSecond, burstSeconds, tenantReads);
+        this.tenantWrites = Limit.of(tenantWritesPerSecond, burstSeconds, tenantWrites);
+        this.userReads = Limit.of(userReadsPerSecond, burstSeconds, userReads);
+        this.userWrites = Limit.of(userWritesPerSecond, burstSeconds, userWrites);
+    }
+
+    boolean isEnabled() {
+        return tenantReads != null || tenantWrites != null || userReads != null || userWrites != null;
+    }
+
+    /**
+     * The user bucket is taken first, so a throttled user does not drain the bucket of the tenant. If the
+     * tenant bucket is empty the token of the user is given back.
+     *
+     * @return true if the request of the user for the tenant is within all limits
+     */
+    boolean tryAcquire(final String tenant, final String username, final boolean write) {
+        final long now = System.nanoTime();
+
+        if (write) {
+            return tryAcquire(userWrites, username, tenantWrites, tenant, now);
+        }
+
+        return tryAcquire(userReads, username, tenantReads, tenant, now);
+    }
+
+    private static boolean tryAcquire(final Limit userLimit, final String username, final Limit tenantLimit, final String tenant, final long now) {
+
+        if (!tryAcquire(userLimit, username, now)) {
+            return false;
+        }
+
+        if (!tryAcquire(tenantLimit, tenant, now)) {
+            if (userLimit != null) {
+                userLimit.release(username);
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    private static boolean tryAcquire(final Limit limit, final String key, final long now) {
+        return limit == null || limit.tryAcquire(key, now);
+    }
+
+    private static final class Limit {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+        private Limit(final long intervalNanos, final long toleranceNanos) {
+            this.intervalNanos = intervalNanos;
+            this.toleranceNanos = toleranceNanos;
+        }
+
+        static Limit of(final double perSecond, final double burstSeconds, final Limit previous) {
+
+            if (perSecond <= 0) {
+                return null;
+            }
+
+            final long intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+            final long burst = Math.max(1, (long) (perSecond * burstSeconds));
+            final long toleranceNanos = (burst - 1) * intervalNanos;
+
+            if (previous != null && previous.intervalNanos == intervalNanos && previous.toleranceNanos == toleranceNanos) {
+                return previous;
+            }
+
+            return new Limit(intervalNanos, toleranceNanos);
+        }
+
+        boolean tryAcquire(final String key, final long now) {
+            AtomicLong bucket = buckets.get(key);
+
+            if (bucket == null) {
+                if (buckets.size() >= MAX_KEYS) {
+                    buckets.clear();
+                }
+
+                bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+            }
+
+            for (;;) {
+                final long tat = bucket.get();
+                final long start = tat - now > 0 ? tat : now;
+
+                if (start - now > toleranceNanos) {
+                    return false;
+                }
+
+                if (bucket.compareAndSet(tat, start + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        void release(final String key) {
+            final AtomicLong bucket = buckets.get(key);
+
+            if (bucket != null) {
+                bucket.addAndGet(-intervalNanos);
+            }
+        }
+    }
+}
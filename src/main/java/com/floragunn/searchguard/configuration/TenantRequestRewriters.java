@@ -0,0 +1,433 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.IndicesRequest.Replaceable;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsIndexRequest;
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequest.Item;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.replication.ReplicationRequest;
+import org.elasticsearch.action.support.single.shard.SingleShardRequest;
+import org.elasticsearch.action.termvectors.MultiTermVectorsRequest;
+import org.elasticsearch.action.termvectors.TermVectorsRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+
+/**
+ * Registry of the index rewriters used by the multitenancy interceptor.
+ * <p>
+ * Rewriters are registered for a request type in order of precedence. For every concrete request class
+ * the first registration which is assignable from that class is looked up once and then cached in a
+ * {@link ClassValue}, so dispatching a request is a single lookup instead of an <code>instanceof</code> chain.
+ * <p>
+ * Additional request types can be supported by implementing {@link Provider} and registering the implementation
+ * in <code>META-INF/services/com.floragunn.searchguard.configuration.TenantRequestRewriters$Provider</code>.
+ * Rewriters contributed by providers take precedence over the built-in ones.
+ */
+public final class TenantRequestRewriters {
+
+    /**
+     * Replaces the kibana index of a request with the tenant index
+     *
+     * @return false if the request was left unchanged because it can not be rewritten as a whole
+     */
+    @FunctionalInterface
+    public interface IndexReplacer<T> {
+        boolean replace(T request, String oldIndexName, String newIndexName);
+    }
+
+    enum ReplaceResult {
+        REPLACED, REJECTED, UNHANDLED
+    }
+
+    /**
+     * Reduces the indices of a request to the ones which are allowed.
+     * The resolve function returns null if no index survives.
+     *
+     * @return false if the request can not be reduced
+     */
+    @FunctionalInterface
+    public interface IndexReducer<T> {
+        boolean reduce(T request, Function<String[], String[]> resolve);
+    }
+
+    /**
+     * SPI to register rewriters for additional request types
+     */
+    public interface Provider {
+        void register(Builder builder);
+    }
+
+    public static final class Builder {
+
+        private final List<Registration<IndexReplacer<Object>>> replacers = new ArrayList<>();
+        private final List<Registration<IndexReducer<Object>>> reducers = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> Builder replacer(final Class<T> type, final IndexReplacer<? super T> replacer) {
+            replacers.add(new Registration<>(type, (IndexReplacer<Object>) replacer));
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> Builder reducer(final Class<T> type, final IndexReducer<? super T> reducer) {
+            reducers.add(new Registration<>(type, (IndexReducer<Object>) reducer));
+            return this;
+        }
+
+        public TenantRequestRewriters build() {
+            return new TenantRequestRewriters(this);
+        }
+    }
+
+    private static final class Registration<R> {
+        private final Class<?> type;
+        private final R rewriter;
+
+        private Registration(final Class<?> type, final R rewriter) {
+            this.type = type;
+            this.rewriter = rewriter;
+        }
+    }
+
+    private static final IndexReplacer<Object> NOOP_REPLACER = (request, oldIndexName, newIndexName) -> true;
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final List<Registration<IndexReplacer<Object>>> replacers;
+    private final List<Registration<IndexReducer<Object>>> reducers;
+    private final Map<Class<?>, LongAdder> unhandled = new ConcurrentHashMap<>();
+
+    private final ClassValue<IndexReplacer<Object>> replacerByClass = new ClassValue<IndexReplacer<Object>>() {
+        @Override
+        protected IndexReplacer<Object> computeValue(final Class<?> type) {
+            return lookup(replacers, type);
+        }
+    };
+
+    private final ClassValue<IndexReducer<Object>> reducerByClass = new ClassValue<IndexReducer<Object>>() {
+        @Override
+        protected IndexReducer<Object> computeValue(final Class<?> type) {
+            return lookup(reducers, type);
+        }
+    };
+
+    private TenantRequestRewriters(final Builder builder) {
+        this.replacers = Collections.unmodifiableList(new ArrayList<>(builder.replacers));
+        this.reducers = Collections.unmodifiableList(new ArrayList<>(builder.reducers));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the rewriters contributed by {@link Provider}s found by the given class loader followed by the built-in ones
+     */
+    static TenantRequestRewriters load(final ClassLoader classLoader) {
+        final Builder builder = builder();
+
+        for (Provider provider : ServiceLoader.load(Provider.class, classLoader)) {
+            provider.register(builder);
+        }
+
+        registerDefaults(builder);
+        return builder.build();
+    }
+
+    ReplaceResult replaceIndex(final Object request, final String oldIndexName, final String newIndexName) {
+        final IndexReplacer<Object> replacer = replacerByClass.get(request.getClass());
+
+        if (replacer == null) {
+            countUnhandled(request.getClass());
+            return ReplaceResult.UNHANDLED;
+        }
+
+        return replacer.replace(request, oldIndexName, newIndexName) ? ReplaceResult.REPLACED : ReplaceResult.REJECTED;
+    }
+
+    /**
+     * @return false if the request can not be reduced or no reducer is registered for its class
+     */
+    boolean reduceIndices(final Object request, final Function<String[], String[]> resolve) {
+        final IndexReducer<Object> reducer = reducerByClass.get(request.getClass());
+
+        if (reducer == null) {
+            countUnhandled(request.getClass());
+            return false;
+        }
+
+        return reducer.reduce(request, resolve);
+    }
+
+    /**
+     * @return number of requests per class for which no rewriter was registered
+     */
+    Map<String, Long> getUnhandledRequestCounts() {
+        final Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<Class<?>, LongAdder> entry : unhandled.entrySet()) {
+            counts.put(entry.getKey().getName(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    private void countUnhandled(final Class<?> type) {
+        LongAdder counter = unhandled.get(type);
+
+        if (counter == null) {
+            final LongAdder newCounter = new LongAdder();
+            counter = unhandled.putIfAbsent(type, newCounter);
+
+            if (counter == null) {
+                counter = newCounter;
+                //only the first occurrence is logged, the count is kept in getUnhandledRequestCounts()
+                log.warn("Dont know what to do with {}", type);
+            }
+        }
+
+        counter.increment();
+    }
+
+    private static <R> R lookup(final List<Registration<R>> registrations, final Class<?> type) {
+        for (Registration<R> registration : registrations) {
+            if (registration.type.isAssignableFrom(type)) {
+                return registration.rewriter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rewrites only the sub-requests of a msearch or mget which target nothing but the kibana index, all other
+     * sub-requests are left as they are. Used for batches which mix the kibana index with other indices.
+     *
+     * @return number of rewritten sub-requests, -1 if a sub-request targets the kibana index together with
+     * other indices and the request was left unchanged
+     */
+    static int replaceSubRequests(final Object request, final String oldIndexName, final String newIndexName) {
+        int replaced = 0;
+
+        if (request instanceof MultiSearchRequest) {
+            final List<SearchRequest> requests = ((MultiSearchRequest) request).requests();
+
+            if (!canReplaceSubRequests(requests, oldIndexName)) {
+                return -1;
+            }
+
+            for (SearchRequest sr : requests) {
+                if (isSubRequestOf(sr.indices(), oldIndexName)) {
+                    sr.indices(newIndexName);
+                    replaced++;
+                }
+            }
+        } else if (request instanceof MultiGetRequest) {
+            for (Item item : ((MultiGetRequest) request).getItems()) {
+                if (oldIndexName.equals(item.index())) {
+                    item.index(newIndexName);
+                    replaced++;
+                }
+            }
+        }
+
+        return replaced;
+    }
+
+    /**
+     * @return false if a search targets the given index together with other indices
+     */
+    static boolean canReplaceSubRequests(final List<SearchRequest> requests, final String indexName) {
+        for (SearchRequest sr : requests) {
+            final String[] indices = sr.indices();
+
+            if (indices != null && indices.length > 1 && Arrays.asList(indices).contains(indexName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isSubRequestOf(final String[] indices, final String indexName) {
+        return indices != null && indices.length == 1 && indexName.equals(indices[0]);
+    }
+
+    /**
+     * Rewrites all items of a bulk request in one pass. If any item does not target the kibana index
+     * the items already rewritten are restored and the request is rejected, so a bulk request is never
+     * executed partially rewritten. Document sources are never touched.
+     */
+    @SuppressWarnings("rawtypes")
+    static boolean replaceBulkIndex(final BulkRequest request, final String oldIndexName, final String newIndexName) {
+        final List<DocWriteRequest> items = request.requests();
+
+        for (int i = 0; i < items.size(); i++) {
+            final DocWriteRequest<?> item = items.get(i);
+            final String index = item.index();
+
+            if (!oldIndexName.equals(index) && !newIndexName.equals(index)) {
+                for (int j = 0; j < i; j++) {
+                    setIndex(items.get(j), oldIndexName);
+                }
+                return false;
+            }
+
+            setIndex(item, newIndexName);
+        }
+
+        return true;
+    }
+
+    private static void setIndex(final DocWriteRequest<?> item, final String index) {
+        switch (item.opType()) {
+        case INDEX:
+        case CREATE:
+            ((IndexRequest) item).index(index);
+            break;
+        case UPDATE:
+            ((UpdateRequest) item).index(index);
+            break;
+        case DELETE:
+            ((DeleteRequest) item).index(index);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown op type " + item.opType());
+        }
+    }
+
+    private static void registerDefaults(final Builder builder) {
+
+        //field mappings are resolved against the original kibana index
+        builder.replacer(GetFieldMappingsIndexRequest.class, NOOP_REPLACER);
+        builder.replacer(GetFieldMappingsRequest.class, NOOP_REPLACER);
+
+        builder.replacer(CreateIndexRequest.class, (request, oldIndexName, newIndexName) -> {
+            request.index(newIndexName);
+            return true;
+        });
+        builder.replacer(BulkRequest.class, TenantRequestRewriters::replaceBulkIndex);
+        builder.replacer(MultiGetRequest.class, (request, oldIndexName, newIndexName) -> {
+            for (Item item : request.getItems()) {
+                item.index(newIndexName);
+            }
+            return true;
+        });
+        builder.replacer(MultiSearchRequest.class, (request, oldIndexName, newIndexName) -> {
+            for (SearchRequest ar : request.requests()) {
+                ar.indices(newIndexName);
+            }
+            return true;
+        });
+        builder.replacer(MultiTermVectorsRequest.class, (request, oldIndexName, newIndexName) -> {
+            for (TermVectorsRequest ar : request.getRequests()) {
+                ar.index(newIndexName);
+            }
+            return true;
+        });
+        builder.replacer(UpdateRequest.class, (request, oldIndexName, newIndexName) -> {
+            request.index(newIndexName);
+            return true;
+        });
+        builder.replacer(IndexRequest.class, (request, oldIndexName, newIndexName) -> {
+            request.index(newIndexName);
+            return true;
+        });
+        builder.replacer(DeleteRequest.class, (request, oldIndexName, newIndexName) -> {
+            request.index(newIndexName);
+            return true;
+        });
+        builder.replacer(SingleShardRequest.class, (request, oldIndexName, newIndexName) -> {
+            request.index(newIndexName);
+            return true;
+        });
+        builder.replacer(RefreshRequest.class, (request, oldIndexName, newIndexName) -> {
+            request.indices(newIndexName);
+            return true;
+        });
+        builder.replacer(ReplicationRequest.class, (request, oldIndexName, newIndexName) -> {
+            request.index(newIndexName);
+            return true;
+        });
+        builder.replacer(Replaceable.class, (request, oldIndexName, newIndexName) -> {
+            request.indices(newIndexName);
+            return true;
+        });
+
+        builder.reducer(Replaceable.class, (request, resolve) -> {
+            final String[] resolved = resolve.apply(request.indices());
+
+            if (resolved == null) {
+                return false;
+            }
+
+            request.indices(resolved);
+            return true;
+        });
+        builder.reducer(SingleShardRequest.class, (request, resolve) -> {
+            final String[] indices = request.indices();
+            final String index = request.index();
+
+            final List<String> indicesL = new ArrayList<String>();
+
+            if (index != null) {
+                indicesL.add(index);
+            }
+
+            if (indices != null && indices.length > 0) {
+                indicesL.addAll(Arrays.asList(indices));
+            }
+
+            final String[] resolved = resolve.apply(indicesL.toArray(new String[0]));
+
+            if (resolved == null) {
+                return false;
+            }
+
+            request.index(resolved[0]);
+            return true;
+        });
+        builder.reducer(MultiGetRequest.Item.class, (request, resolve) -> {
+            final String[] resolved = resolve.apply(request.indices());
+
+            if (resolved == null) {
+                return false;
+            }
+
+            request.index(resolved[0]);
+            return true;
+        });
+    }
+}
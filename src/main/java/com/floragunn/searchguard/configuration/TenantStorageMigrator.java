@@ -0,0 +1,372 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest.OpType;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
+
+/**
+ * Copies the documents of tenants between their own kibana indices and the shared tenant index
+ * when the tenant storage mode was changed.
+ * <p>
+ * The migration runs on the elected master only, one tenant at a time, and is started by a configuration
+ * change or when the node is elected. In shared mode the tenants are the open tenant indices of the cluster
+ * state, closed ones are migrated once they are opened again. Otherwise, as long as the shared index exists,
+ * the tenants are the routing keys of its documents. Once all of them are copied the migrator is idle until
+ * the next start. Documents are created with op type <code>create</code>, so documents written by users into
+ * the new location in the meantime are never overwritten. The source is left untouched and can be deleted
+ * once all tenants are migrated.
+ * <p>
+ * A completed migration is recorded by a marker document in <code>migration.checkpoint_index</code>, which
+ * replaces the marker of the opposite direction, so a tenant is copied again after the storage mode was
+ * changed back and forth. Failed copies leave no marker and are retried on the next start.
+ */
+final class TenantStorageMigrator implements ClusterStateListener {
+
+    private static final int BATCH_SIZE = 500;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final ClusterService clusterService;
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final Queue<Migration> queue = new ConcurrentLinkedQueue<>();
+    private volatile MultitenancyConfig config;
+    private boolean running;
+    private boolean rerun;
+
+    private static final class Migration {
+        private final String tenantIndexName;
+        private final String tenantKey;
+        private final boolean toShared;
+
+        private Migration(final String tenantIndexName, final String tenantKey, final boolean toShared) {
+            this.tenantIndexName = tenantIndexName;
+            this.tenantKey = tenantKey;
+            this.toShared = toShared;
+        }
+
+        private String markerId(final boolean toShared) {
+            return "storage:" + tenantIndexName + (toShared ? ":shared" : ":index");
+        }
+
+        @Override
+        public String toString() {
+            return tenantIndexName + (toShared ? " -> shared index" : " <- shared index");
+        }
+    }
+
+    TenantStorageMigrator(final ClusterService clusterService, final Client client, final ThreadPool threadPool) {
+        this.clusterService = clusterService;
+        this.client = client;
+        this.threadPool = threadPool;
+    }
+
+    synchronized void configure(final MultitenancyConfig config) {
+        this.config = config;
+        start();
+    }
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+        //a newly elected master takes over the migrations of the former one
+        if (event.localNodeMaster() && !event.previousState().nodes().isLocalNodeElectedMaster()) {
+            start();
+        }
+    }
+
+    private synchronized void start() {
+        final MultitenancyConfig config = this.config;
+
+        if (config == null || clusterService == null || client == null || threadPool == null
+                || !clusterService.state().nodes().isLocalNodeElectedMaster()) {
+            return;
+        }
+
+        //a running migration stops after its current tenant if the configuration changed and then starts over
+        if (running) {
+            rerun = true;
+            return;
+        }
+
+        running = true;
+        rerun = false;
+
+        try {
+            threadPool.generic().execute(() -> enumerate(config));
+        } catch (Exception e) {
+            log.warn("Unable to start the tenant storage migration", e);
+            running = false;
+        }
+    }
+
+    private synchronized void finish() {
+        running = false;
+
+        if (rerun) {
+            start();
+        }
+    }
+
+    private void enumerate(final MultitenancyConfig config) {
+        final ClusterState state = clusterService.state();
+        queue.clear();
+
+        if (config.isSharedTenantIndex()) {
+            for (ObjectObjectCursor<String, IndexMetaData> index : state.metaData().indices()) {
+                if (index.value.getState() == IndexMetaData.State.OPEN && TenantIndexNameCache.isTenantIndexName(config.getKibanaIndexName(), index.key)) {
+                    queue.add(new Migration(index.key, config.toTenantKey(index.key), true));
+                }
+            }
+
+            migrateNext(config);
+        } else if (state.metaData().hasIndex(config.getSharedIndexName())) {
+            try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+                client.prepareSearch(config.getSharedIndexName())
+                        .setScroll(SCROLL_KEEP_ALIVE)
+                        .setSize(BATCH_SIZE)
+                        .setFetchSource(false)
+                        .addSort("_doc", SortOrder.ASC)
+                        .execute(tenantKeysListener(config, new HashSet<>()));
+            } catch (Exception e) {
+                log.warn("Unable to enumerate the tenants of {}", config.getSharedIndexName(), e);
+                finish();
+            }
+        } else {
+            finish();
+        }
+    }
+
+    private ActionListener<SearchResponse> tenantKeysListener(final MultitenancyConfig config, final Set<String> tenantKeys) {
+        return new ActionListener<SearchResponse>() {
+
+            @Override
+            public void onResponse(final SearchResponse response) {
+                final SearchHit[] hits = response.getHits().getHits();
+
+                if (hits.length == 0 || TenantStorageMigrator.this.config != config) {
+                    clearScroll(response.getScrollId());
+
+                    for (String tenantKey : tenantKeys) {
+                        queue.add(new Migration(config.fromTenantKey(tenantKey), tenantKey, false));
+                    }
+
+                    migrateNext(config);
+                    return;
+                }
+
+                for (SearchHit hit : hits) {
+                    final DocumentField routing = hit.field(SharedTenantIndex.ROUTING_FIELD);
+
+                    if (routing != null) {
+                        tenantKeys.add(routing.getValue());
+                    }
+                }
+
+                client.prepareSearchScroll(response.getScrollId())
+                        .setScroll(SCROLL_KEEP_ALIVE)
+                        .execute(this);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                log.warn("Unable to enumerate the tenants of {}", config.getSharedIndexName(), e);
+                finish();
+            }
+        };
+    }
+
+    private void migrateNext(final MultitenancyConfig config) {
+        //a configuration change stops the run, the next run picks up the new configuration
+        final Migration migration = this.config == config ? queue.poll() : null;
+
+        if (migration == null) {
+            finish();
+            return;
+        }
+
+        try (StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            client.prepareGet(config.getMigrationCheckpointIndex(), TenantIndexMigrationJob.CHECKPOINT_TYPE, migration.markerId(migration.toShared))
+                    .execute(new ActionListener<GetResponse>() {
+
+                        @Override
+                        public void onResponse(final GetResponse response) {
+                            if (response.isExists()) {
+                                //migrated before
+                                migrateNext(config);
+                            } else {
+                                log.info("Migrate tenant {}", migration);
+                                copy(config, migration, migration.toShared ? migration.tenantIndexName : config.getSharedIndexName());
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(final Exception e) {
+                            //no checkpoint index yet
+                            log.info("Migrate tenant {}", migration);
+                            copy(config, migration, migration.toShared ? migration.tenantIndexName : config.getSharedIndexName());
+                        }
+                    });
+        } catch (Exception e) {
+            done(config, migration, e);
+        }
+    }
+
+    private void copy(final MultitenancyConfig config, final Migration migration, final String sourceIndex) {
+        client.prepareSearch(sourceIndex)
+                .setScroll(SCROLL_KEEP_ALIVE)
+                .setSize(BATCH_SIZE)
+                .setRouting(migration.toShared ? null : migration.tenantKey)
+                .setQuery(migration.toShared ? QueryBuilders.matchAllQuery() : SharedTenantIndex.tenantFilter(null, migration.tenantKey))
+                .execute(scrollListener(config, migration));
+    }
+
+    private ActionListener<SearchResponse> scrollListener(final MultitenancyConfig config, final Migration migration) {
+        return new ActionListener<SearchResponse>() {
+
+            @Override
+            public void onResponse(final SearchResponse response) {
+                final SearchHit[] hits = response.getHits().getHits();
+
+                if (hits.length == 0) {
+                    clearScroll(response.getScrollId());
+                    markMigrated(config, migration);
+                    return;
+                }
+
+                final BulkRequestBuilder bulk = client.prepareBulk();
+
+                //kibana documents are always json
+                for (SearchHit hit : hits) {
+                    final IndexRequest ir;
+
+                    if (migration.toShared) {
+                        ir = new IndexRequest(config.getSharedIndexName(), hit.getType(), SharedTenantIndex.toSharedId(hit.getId(), migration.tenantKey))
+                                .routing(migration.tenantKey);
+                    } else {
+                        ir = new IndexRequest(migration.tenantIndexName, hit.getType(), SharedTenantIndex.fromSharedId(hit.getId(), migration.tenantKey));
+                    }
+
+                    bulk.add(ir.opType(OpType.CREATE).source(hit.getSourceRef(), XContentType.JSON));
+                }
+
+                bulk.execute(new ActionListener<BulkResponse>() {
+
+                    @Override
+                    public void onResponse(final BulkResponse bulkResponse) {
+
+                        for (BulkItemResponse item : bulkResponse.getItems()) {
+                            //documents which already exist were copied before or written by users meanwhile
+                            if (item.isFailed() && item.getFailure().getStatus() != RestStatus.CONFLICT) {
+                                clearScroll(response.getScrollId());
+                                done(config, migration, new IllegalStateException("Unable to copy documents: " + bulkResponse.buildFailureMessage()));
+                                return;
+                            }
+                        }
+
+                        client.prepareSearchScroll(response.getScrollId())
+                                .setScroll(SCROLL_KEEP_ALIVE)
+                                .execute(scrollListener(config, migration));
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e) {
+                        clearScroll(response.getScrollId());
+                        done(config, migration, e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                done(config, migration, e);
+            }
+        };
+    }
+
+    private void markMigrated(final MultitenancyConfig config, final Migration migration) {
+        final Map<String, Object> marker = new HashMap<>();
+        marker.put("source", migration.toShared ? migration.tenantIndexName : config.getSharedIndexName());
+        marker.put("target", migration.toShared ? config.getSharedIndexName() : migration.tenantIndexName);
+        marker.put("status", "done");
+        marker.put("updated", System.currentTimeMillis());
+
+        client.prepareBulk()
+                .add(client.prepareIndex(config.getMigrationCheckpointIndex(), TenantIndexMigrationJob.CHECKPOINT_TYPE, migration.markerId(migration.toShared))
+                        .setSource(marker))
+                .add(client.prepareDelete(config.getMigrationCheckpointIndex(), TenantIndexMigrationJob.CHECKPOINT_TYPE, migration.markerId(!migration.toShared)))
+                .execute(new ActionListener<BulkResponse>() {
+
+                    @Override
+                    public void onResponse(final BulkResponse response) {
+                        //a missing marker of the opposite direction is not a failure of the delete
+                        done(config, migration, response.getItems()[0].isFailed() ? response.getItems()[0].getFailure().getCause() : null);
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e) {
+                        done(config, migration, e);
+                    }
+                });
+    }
+
+    private void clearScroll(final String scrollId) {
+        if (scrollId != null) {
+            client.prepareClearScroll().addScrollId(scrollId).execute(ActionListener.wrap(r -> {}, e -> {}));
+        }
+    }
+
+    private void done(final MultitenancyConfig config, final Migration migration, final Exception e) {
+        if (e != null) {
+            log.warn("Unable to migrate tenant {}, will retry on the next start", migration, e);
+        } else {
+            log.info("Tenant {} migrated", migration);
+        }
+
+        migrateNext(config);
+    }
+}
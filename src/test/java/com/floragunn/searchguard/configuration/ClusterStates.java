@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Cluster states with empty indices for tests and benchmarks
+ */
+final class ClusterStates {
+
+    private ClusterStates() {
+    }
+
+    static ClusterState of(final String... indices) {
+        return of(MetaData.builder(), indices);
+    }
+
+    static ClusterState of(final long metaDataVersion, final String... indices) {
+        return of(MetaData.builder().version(metaDataVersion), indices);
+    }
+
+    static ClusterState of(final MetaData.Builder metaData, final String... indices) {
+
+        for (String index : indices) {
+            metaData.put(index(index));
+        }
+
+        return ClusterState.builder(ClusterName.DEFAULT).metaData(metaData).build();
+    }
+
+    /**
+     * @return an index with one shard and no replicas
+     */
+    static IndexMetaData.Builder index(final String index) {
+        return index(index, Settings.EMPTY).numberOfShards(1).numberOfReplicas(0);
+    }
+
+    /**
+     * @return an index with the given settings, shards and replicas are up to the caller
+     */
+    static IndexMetaData.Builder index(final String index, final Settings settings) {
+        return IndexMetaData.builder(index)
+                .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT).put(settings));
+    }
+}
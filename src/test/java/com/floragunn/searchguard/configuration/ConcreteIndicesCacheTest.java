@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcreteIndicesCacheTest {
+
+    private final AtomicInteger resolverCalls = new AtomicInteger();
+
+    private final IndexNameExpressionResolver resolver = new IndexNameExpressionResolver(Settings.EMPTY) {
+        @Override
+        public String[] concreteIndexNames(ClusterState state, IndicesOptions options, String... indexExpressions) {
+            resolverCalls.incrementAndGet();
+            return super.concreteIndexNames(state, options, indexExpressions);
+        }
+    };
+
+    @Test
+    public void testCachedPerMetaDataVersion() throws Exception {
+        final ConcreteIndicesCache cache = new ConcreteIndicesCache(resolver, IndicesOptions.lenientExpandOpen(), 10);
+        final ClusterState state = ClusterStates.of(1, "logs-1", "logs-2", "other");
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("logs-1", "logs-2")),
+                new HashSet<>(Arrays.asList(cache.concreteIndexNames(state, new String[] { "logs*" }))));
+        cache.concreteIndexNames(state, new String[] { "logs*" });
+        Assert.assertEquals(1, resolverCalls.get());
+
+        final ClusterState changedState = ClusterStates.of(2, "logs-1", "logs-2", "logs-3");
+        Assert.assertEquals(3, cache.concreteIndexNames(changedState, new String[] { "logs*" }).length);
+        Assert.assertEquals(2, resolverCalls.get());
+    }
+
+    @Test
+    public void testDateMathIsNotCached() throws Exception {
+        final ConcreteIndicesCache cache = new ConcreteIndicesCache(resolver, IndicesOptions.lenientExpandOpen(), 10);
+        final ClusterState state = ClusterStates.of(1, "logs-1", "logs-2");
+
+        Assert.assertTrue(ConcreteIndicesCache.containsDateMath(new String[] { "logs-1", "<logs-{now/d}>" }));
+        Assert.assertFalse(ConcreteIndicesCache.containsDateMath(new String[] { "logs*" }));
+
+        //the index of the expression changes with the time and not with the metadata
+        cache.concreteIndexNames(state, new String[] { "<logs-{now/d}>" });
+        cache.concreteIndexNames(state, new String[] { "<logs-{now/d}>" });
+        Assert.assertEquals(2, resolverCalls.get());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DynamicConfigLoaderTest {
+
+    @Test
+    public void testParse() throws Exception {
+        final String json = "{\"searchguard\":{\"dynamic\":{\"kibana\":{\"index\":\".kibana-6\",\"close_idle_tenant_indices_after\":\"7d\"}}}}";
+        final Settings config = DynamicConfigLoader.parse(Collections.singletonMap(DynamicConfigLoader.CONFIG_ID,
+                Base64.getEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8))));
+
+        final MultitenancyConfig mtConfig = MultitenancyConfig.of(config);
+        Assert.assertEquals(".kibana-6", mtConfig.getKibanaIndexName());
+        Assert.assertEquals(7, mtConfig.getCloseIdleTenantIndicesAfter().days());
+
+        //the same content as the settings of the requests does not reconfigure the jobs
+        Assert.assertTrue(mtConfig.hasSameSource(MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.index", ".kibana-6")
+                .put("searchguard.dynamic.kibana.close_idle_tenant_indices_after", "7d").build())));
+        Assert.assertFalse(mtConfig.hasSameSource(MultitenancyConfig.of(Settings.EMPTY)));
+    }
+
+    @Test
+    public void testUnknownFormat() throws Exception {
+        Assert.assertNull(DynamicConfigLoader.parse(Collections.emptyMap()));
+        Assert.assertNull(DynamicConfigLoader.parse(Collections.singletonMap(DynamicConfigLoader.CONFIG_ID, "not base64!")));
+    }
+}
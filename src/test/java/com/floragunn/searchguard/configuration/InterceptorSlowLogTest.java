@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.configuration.InterceptorSlowLog.Phase;
+import com.floragunn.searchguard.configuration.InterceptorSlowLog.Timer;
+import com.floragunn.searchguard.user.User;
+
+public class InterceptorSlowLogTest {
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        Assert.assertNull(InterceptorSlowLog.of(MultitenancyConfig.of(Settings.EMPTY)));
+    }
+
+    @Test
+    public void testThresholds() throws Exception {
+        final InterceptorSlowLog slowLog = InterceptorSlowLog.of(MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.slowlog.threshold.warn", "1s")
+                .put("searchguard.dynamic.kibana.slowlog.threshold.info", "10ms")
+                .put("searchguard.dynamic.kibana.slowlog.threshold.debug", "1ms").build()));
+        Assert.assertNotNull(slowLog);
+
+        Assert.assertEquals(Level.WARN, slowLog.level(TimeUnit.SECONDS.toNanos(2)));
+        Assert.assertEquals(Level.WARN, slowLog.level(TimeUnit.SECONDS.toNanos(1)));
+        Assert.assertEquals(Level.INFO, slowLog.level(TimeUnit.MILLISECONDS.toNanos(20)));
+        Assert.assertEquals(Level.DEBUG, slowLog.level(TimeUnit.MILLISECONDS.toNanos(5)));
+        Assert.assertNull(slowLog.level(TimeUnit.MICROSECONDS.toNanos(500)));
+
+        final InterceptorSlowLog warnOnly = InterceptorSlowLog.of(MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.slowlog.threshold.warn", "1s").build()));
+        Assert.assertNull(warnOnly.level(TimeUnit.MILLISECONDS.toNanos(999)));
+        Assert.assertEquals(Level.WARN, warnOnly.level(TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Test
+    public void testMessage() throws Exception {
+        final InterceptorSlowLog slowLog = InterceptorSlowLog.of(MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.slowlog.threshold.warn", "0ms").build()));
+        Assert.assertNotNull(slowLog);
+
+        final MultiSearchRequest msearch = new MultiSearchRequest().add(new SearchRequest(".kibana")).add(new SearchRequest(".kibana"));
+        Assert.assertEquals(2, InterceptorSlowLog.subRequests(msearch));
+        Assert.assertEquals(0, InterceptorSlowLog.subRequests(new GetRequest(".kibana")));
+
+        final User user = new User("jdoe");
+        user.setRequestedTenant("hr");
+
+        final Timer timer = slowLog.start();
+        timer.add(Phase.REWRITE, 10);
+        timer.add(Phase.REDUCE, 30);
+        final String message = InterceptorSlowLog.message(timer, 100, Phase.TENANT, "replaceKibanaIndex", msearch, "indices:data/read/msearch", user);
+
+        //the unaccounted 60 nanos go to the remainder phase, phases without time are left out
+        Assert.assertTrue(message, message.startsWith("replaceKibanaIndex took["));
+        Assert.assertTrue(message, message.contains("took_nanos[100]"));
+        Assert.assertTrue(message, message.contains("phases[tenant=60 rewrite=10 reduce=30]"));
+        Assert.assertTrue(message, message.endsWith(
+                "request[MultiSearchRequest], sub_requests[2], action[indices:data/read/msearch], tenant[hr], user[jdoe]"));
+
+        //a phase which took longer than the invocation is not compensated with a negative remainder
+        final Timer overrun = slowLog.start();
+        overrun.add(Phase.RESOLVE, 200);
+        final String overrunMessage = InterceptorSlowLog.message(overrun, 100, Phase.TENANT, "replaceKibanaIndex", new GetRequest(".kibana"),
+                "indices:data/read/get", null);
+        Assert.assertTrue(overrunMessage, overrunMessage.contains("phases[resolve=200]"));
+        Assert.assertTrue(overrunMessage, overrunMessage.endsWith("sub_requests[0], action[indices:data/read/get], tenant[null], user[null]"));
+    }
+}
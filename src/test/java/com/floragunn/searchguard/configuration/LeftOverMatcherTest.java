@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.configuration.PrivilegesEvaluator.IndexType;
+
+public class LeftOverMatcherTest {
+
+    @Test
+    public void testMatches() throws Exception {
+        final LeftOverMatcher matcher = LeftOverMatcher.compile(leftOvers("logs-2", "logs-1", "logs-3"));
+        Assert.assertFalse(matcher.matchesAllIndices());
+        Assert.assertTrue(matcher.matches("logs-1"));
+        Assert.assertTrue(matcher.matches("logs-3"));
+        Assert.assertFalse(matcher.matches("logs-4"));
+
+        Assert.assertTrue(LeftOverMatcher.compile(leftOvers("logs-1", "*")).matchesAllIndices());
+        Assert.assertTrue(LeftOverMatcher.compile(leftOvers("_all")).matches("logs-4"));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        final LeftOverMatcher.Cache cache = new LeftOverMatcher.Cache(2);
+        final LeftOverMatcher matcher = cache.get("sg_role", leftOvers("logs-1", "logs-2"));
+
+        Assert.assertSame(matcher, cache.get("sg_role", leftOvers("logs-2", "logs-1")));
+        Assert.assertNotSame(matcher, cache.get("sg_other_role", leftOvers("logs-2", "logs-1")));
+        final LeftOverMatcher other = cache.get("sg_role", leftOvers("logs-1"));
+        Assert.assertNotSame(matcher, other);
+        Assert.assertSame(matcher, cache.get("sg_role", leftOvers("logs-1", "logs-2")));
+        Assert.assertSame(other, cache.get("sg_role", leftOvers("logs-1")));
+        Assert.assertTrue(cache.size() <= 2);
+    }
+
+    @Test
+    public void testCacheDoesNotReferenceRequestSet() throws Exception {
+        final LeftOverMatcher.Cache cache = new LeftOverMatcher.Cache(10);
+        final Set<IndexType> requestLeftOvers = leftOvers("logs-1", "logs-2");
+        final LeftOverMatcher matcher = cache.get("sg_role", requestLeftOvers);
+
+        requestLeftOvers.clear();
+        Assert.assertSame(matcher, cache.get("sg_role", leftOvers("logs-1", "logs-2")));
+        Assert.assertNotSame(matcher, cache.get("sg_role", requestLeftOvers));
+    }
+
+    private static Set<IndexType> leftOvers(final String... indices) {
+        final Set<IndexType> leftOvers = new HashSet<>();
+        for (String index : indices) {
+            leftOvers.add(new IndexType(index, "*"));
+        }
+        return leftOvers;
+    }
+}
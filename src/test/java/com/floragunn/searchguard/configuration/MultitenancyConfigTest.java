@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MultitenancyConfigTest {
+
+    @Test
+    public void testTenantIndexProfile() throws Exception {
+        final MultitenancyConfig defaults = MultitenancyConfig.of(Settings.EMPTY);
+        Assert.assertEquals("1", defaults.getTenantIndexSettings().get("index.number_of_shards"));
+        Assert.assertEquals("0-1", defaults.getTenantIndexSettings().get("index.auto_expand_replicas"));
+        Assert.assertEquals("true", defaults.getTenantIndexSettings().get("index.requests.cache.enable"));
+        Assert.assertEquals("_local", defaults.getTenantReadPreference());
+        Assert.assertTrue(defaults.isTenantRequestCache());
+
+        final MultitenancyConfig custom = MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.tenant_index.auto_expand_replicas", "0-all")
+                .put("searchguard.dynamic.kibana.tenant_index.request_cache", false)
+                .put("searchguard.dynamic.kibana.tenant_index.read_preference", "").build());
+        Assert.assertEquals("0-all", custom.getTenantIndexSettings().get("index.auto_expand_replicas"));
+        Assert.assertEquals("false", custom.getTenantIndexSettings().get("index.requests.cache.enable"));
+        Assert.assertNull(custom.getTenantReadPreference());
+        Assert.assertFalse(custom.isTenantRequestCache());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.Strings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MultitenancyStatsTest {
+
+    @Test
+    public void testHistogram() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.percentile(99));
+
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1_000_000);
+
+        Assert.assertEquals(100, histogram.count());
+        Assert.assertEquals(1023, histogram.percentile(50));
+        Assert.assertEquals(1023, histogram.percentile(99));
+        Assert.assertEquals(1_000_000, histogram.percentile(100));
+    }
+
+    @Test
+    public void testTenantCounters() throws Exception {
+        final MultitenancyStats stats = new MultitenancyStats(TenantRequestRewriters.builder().build());
+        stats.onRequest("human_resources");
+        stats.onRequest("human_resources");
+        stats.onRewrite("human_resources", IndexRequest.class);
+        stats.onReadOnlyDenied("human_resources");
+        stats.onNotAllowed("blafasel");
+
+        Assert.assertEquals(2, stats.tenant("human_resources").requests.sum());
+        Assert.assertEquals(1, stats.tenant("blafasel").notAllowed.sum());
+
+        final String json = Strings.toString(stats);
+        Assert.assertTrue(json, json.contains("\"human_resources\":{\"requests\":2,\"rewrites\":1,\"read_only_denied\":1,\"not_allowed\":0,\"missing_index\":0,\"throttled_reads\":0,\"throttled_writes\":0}"));
+        Assert.assertTrue(json, json.contains("\"" + IndexRequest.class.getName() + "\":1"));
+    }
+}
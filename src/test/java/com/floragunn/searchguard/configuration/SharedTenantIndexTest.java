@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MoreLikeThisQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.indices.TermsLookup;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SharedTenantIndexTest {
+
+    private static final String SHARED = ".kibana-tenants";
+    private static final String KEY = "-1234_hr";
+
+    @Test
+    public void testSuffixIsIdempotent() throws Exception {
+        final String shared = SharedTenantIndex.toSharedId("config:6.1.0", KEY);
+        Assert.assertEquals("config:6.1.0:" + KEY, shared);
+        Assert.assertEquals(shared, SharedTenantIndex.toSharedId(shared, KEY));
+        Assert.assertEquals("config:6.1.0", SharedTenantIndex.fromSharedId(shared, KEY));
+        Assert.assertEquals("config:6.1.0", SharedTenantIndex.fromSharedId("config:6.1.0", KEY));
+        Assert.assertNull(SharedTenantIndex.toSharedId(null, KEY));
+
+        //kibana strips the type of a hit id and prepends it again for the next request
+        final String savedObjectId = shared.substring("config:".length());
+        Assert.assertEquals(shared, SharedTenantIndex.toSharedId("config:" + savedObjectId, KEY));
+        //ids of another tenant are suffixed once more and never reach its documents
+        Assert.assertEquals(shared + ":-99_it", SharedTenantIndex.toSharedId(shared, "-99_it"));
+    }
+
+    @Test
+    public void testTenantKey() throws Exception {
+        final MultitenancyConfig config = MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.tenant_storage", "shared").build());
+        Assert.assertTrue(config.isSharedTenantIndex());
+        Assert.assertEquals(SHARED, config.getSharedIndexName());
+        Assert.assertEquals("hr".hashCode() + "_hr", config.toTenantKey(config.toUserIndexName("hr")));
+        Assert.assertFalse(MultitenancyConfig.of(Settings.EMPTY).isSharedTenantIndex());
+    }
+
+    @Test
+    public void testWrites() throws Exception {
+        final IndexRequest ir = new IndexRequest(".kibana", "doc", "visualization:1");
+        Assert.assertTrue(SharedTenantIndex.replaceIndex(ir, SHARED, KEY));
+        Assert.assertEquals(SHARED, ir.index());
+        Assert.assertEquals("visualization:1:" + KEY, ir.id());
+        Assert.assertEquals(KEY, ir.routing());
+
+        final BulkRequest bulk = new BulkRequest()
+                .add(new IndexRequest(".kibana", "doc", "a"))
+                .add(new IndexRequest(".kibana", "doc", "b").routing("other"));
+        Assert.assertFalse(SharedTenantIndex.replaceIndex(bulk, SHARED, KEY));
+        Assert.assertEquals(".kibana", bulk.requests().get(0).index());
+    }
+
+    @Test
+    public void testReads() throws Exception {
+        final GetRequest get = new GetRequest(".kibana", "doc", "config:6.1.0");
+        Assert.assertTrue(SharedTenantIndex.replaceIndex(get, SHARED, KEY));
+        Assert.assertEquals("config:6.1.0:" + KEY, get.id());
+        Assert.assertEquals(KEY, get.routing());
+
+        final MultiGetRequest mget = new MultiGetRequest().add(".kibana", "doc", "a");
+        Assert.assertTrue(SharedTenantIndex.replaceIndex(mget, SHARED, KEY));
+        Assert.assertEquals(SHARED, mget.getItems().get(0).index());
+        Assert.assertEquals("a:" + KEY, mget.getItems().get(0).id());
+        Assert.assertEquals(KEY, mget.getItems().get(0).routing());
+
+        final SearchRequest search = new SearchRequest(".kibana").source(new SearchSourceBuilder().query(QueryBuilders.termQuery("type", "config")));
+        Assert.assertTrue(SharedTenantIndex.replaceIndex(search, SHARED, KEY));
+        Assert.assertArrayEquals(new String[] { SHARED }, search.indices());
+        Assert.assertEquals(KEY, search.routing());
+        final BoolQueryBuilder query = (BoolQueryBuilder) search.source().query();
+        Assert.assertEquals(KEY, ((TermQueryBuilder) query.filter().get(0)).value());
+        Assert.assertEquals(1, query.must().size());
+
+        Assert.assertFalse(SharedTenantIndex.replaceIndex(new DeleteIndexRequest(".kibana"), SHARED, KEY));
+    }
+
+    @Test
+    public void testUnconfinedSearches() throws Exception {
+        final SearchRequest global = new SearchRequest(".kibana").source(new SearchSourceBuilder().aggregation(AggregationBuilders.global("all")));
+        Assert.assertFalse(SharedTenantIndex.replaceIndex(global, SHARED, KEY));
+        Assert.assertArrayEquals(new String[] { ".kibana" }, global.indices());
+
+        final SearchRequest lookup = new SearchRequest(".kibana").source(new SearchSourceBuilder().query(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termsLookupQuery("title", new TermsLookup(SHARED, "doc", "other:config", "title")))));
+        Assert.assertFalse(SharedTenantIndex.replaceIndex(lookup, SHARED, KEY));
+
+        final SearchRequest moreLikeThis = new SearchRequest(".kibana").source(new SearchSourceBuilder().query(QueryBuilders.constantScoreQuery(
+                QueryBuilders.moreLikeThisQuery(new String[] { "title" }, null, new MoreLikeThisQueryBuilder.Item[] { new MoreLikeThisQueryBuilder.Item(SHARED, "doc", "other:a") }))));
+        Assert.assertFalse(SharedTenantIndex.replaceIndex(moreLikeThis, SHARED, KEY));
+
+        final MultiSearchRequest msearch = new MultiSearchRequest().add(new SearchRequest(".kibana")).add(global);
+        Assert.assertFalse(SharedTenantIndex.replaceIndex(msearch, SHARED, KEY));
+        Assert.assertArrayEquals(new String[] { ".kibana" }, msearch.requests().get(0).indices());
+
+        final MultiSearchRequest mixed = new MultiSearchRequest().add(new SearchRequest("logs").source(new SearchSourceBuilder()
+                .aggregation(AggregationBuilders.global("all")))).add(lookup);
+        Assert.assertEquals(-1, SharedTenantIndex.replaceSubRequests(mixed, ".kibana", SHARED, KEY));
+    }
+
+    @Test
+    public void testMixedReads() throws Exception {
+        final MultiGetRequest mget = new MultiGetRequest().add("logs", "doc", "a").add(".kibana", "doc", "b");
+        Assert.assertEquals(1, SharedTenantIndex.replaceSubRequests(mget, ".kibana", SHARED, KEY));
+        Assert.assertEquals("a", mget.getItems().get(0).id());
+        Assert.assertNull(mget.getItems().get(0).routing());
+        Assert.assertEquals("b:" + KEY, mget.getItems().get(1).id());
+
+        final MultiSearchRequest msearch = new MultiSearchRequest().add(new SearchRequest("logs")).add(new SearchRequest(".kibana"));
+        Assert.assertEquals(1, SharedTenantIndex.replaceSubRequests(msearch, ".kibana", SHARED, KEY));
+        Assert.assertNull(msearch.requests().get(0).routing());
+        Assert.assertArrayEquals(new String[] { SHARED }, msearch.requests().get(1).indices());
+        Assert.assertEquals(KEY, msearch.requests().get(1).routing());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TenantAuditTrailTest {
+
+    @Test
+    public void testCollapseAndDrop() throws Exception {
+        //without a thread pool nothing is flushed
+        final TenantAuditTrail auditTrail = new TenantAuditTrail(null, new NodeClient(Settings.EMPTY, null), null);
+        auditTrail.configure(MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.audit.enabled", true)
+                .put("searchguard.dynamic.kibana.audit.queue_size", 2).build()));
+        Assert.assertTrue(auditTrail.isEnabled());
+
+        for (int i = 0; i < 10; i++) {
+            auditTrail.onAccess("finance", "jdoe");
+        }
+
+        auditTrail.onReadOnlyDenied("finance", "jdoe");
+        auditTrail.onNotAllowed("management", "jdoe");
+        auditTrail.onAccess("finance", "jdoe");
+
+        Assert.assertEquals(2, auditTrail.pendingEvents());
+        Assert.assertEquals("{\"enabled\":true,\"pending\":2,\"recorded\":13,\"dropped\":1,\"written\":0,\"failed\":0}",
+                Strings.toString(auditTrail));
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        final TenantAuditTrail auditTrail = new TenantAuditTrail(null, new NodeClient(Settings.EMPTY, null), null);
+        auditTrail.configure(MultitenancyConfig.of(Settings.EMPTY));
+        auditTrail.onAccess("finance", "jdoe");
+        Assert.assertFalse(auditTrail.isEnabled());
+        Assert.assertEquals(0, auditTrail.pendingEvents());
+    }
+}
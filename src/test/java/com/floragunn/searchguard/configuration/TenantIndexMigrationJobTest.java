@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Arrays;
+
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TenantIndexMigrationJobTest {
+
+    @Test
+    public void testSourceAndTargetIndices() throws Exception {
+        final MultitenancyConfig config = MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.index", ".kibana-6")
+                .put("searchguard.dynamic.kibana.migration.source_index", ".kibana").build());
+        final String hr = TenantIndexNameCache.compute(".kibana", "hr");
+        final String migrated = TenantIndexNameCache.compute(".kibana-6", "hr");
+
+        final ClusterState state = ClusterStates.of(".kibana", ".kibana-6", hr, migrated, "logs-1");
+        Assert.assertEquals(Arrays.asList(hr), TenantIndexMigrationJob.sourceIndices(config, state));
+        Assert.assertEquals(migrated, TenantIndexMigrationJob.targetIndexName(config, hr));
+    }
+
+    @Test
+    public void testCurrentTenantIndicesAreNoSource() throws Exception {
+        final MultitenancyConfig config = MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.index", ".kibana_6")
+                .put("searchguard.dynamic.kibana.migration.source_index", ".kibana").build());
+        final String hr = TenantIndexNameCache.compute(".kibana", "hr");
+        final String migrated = TenantIndexNameCache.compute(".kibana_6", "hr");
+        Assert.assertTrue(TenantIndexNameCache.isTenantIndexName(".kibana", migrated));
+
+        final ClusterState state = ClusterStates.of(".kibana", ".kibana_6", hr, migrated);
+        Assert.assertEquals(Arrays.asList(hr), TenantIndexMigrationJob.sourceIndices(config, state));
+        Assert.assertEquals(migrated, TenantIndexMigrationJob.targetIndexName(config, hr));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Assert.assertNull(MultitenancyConfig.of(Settings.EMPTY).getMigrationSourceIndex());
+        //migrating an index to itself is a noop
+        Assert.assertNull(MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.migration.source_index", ".kibana").build()).getMigrationSourceIndex());
+    }
+}
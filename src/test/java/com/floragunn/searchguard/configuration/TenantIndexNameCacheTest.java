@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TenantIndexNameCacheTest {
+
+    @Test
+    public void testSameNameAsRegex() throws Exception {
+        final String[] tenants = new String[] { "human_resources", "Business Intelligence", "__user__", "kirk", "\u00c4\u00d6\u00dc \u00e4\u00f6\u00fc \u00df", "a--b..c", "", "123_ABC", "t\u0130" };
+
+        for (String tenant : tenants) {
+            Assert.assertEquals(".kibana_" + tenant.hashCode() + "_" + tenant.toLowerCase().replaceAll("[^a-z0-9]+", ""),
+                    TenantIndexNameCache.compute(".kibana", tenant));
+        }
+    }
+
+    @Test
+    public void testCacheIsBounded() throws Exception {
+        final TenantIndexNameCache cache = new TenantIndexNameCache(".kibana", 10);
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(TenantIndexNameCache.compute(".kibana", "tenant" + i), cache.toUserIndexName("tenant" + i));
+        }
+
+        Assert.assertTrue(cache.size() <= 10);
+        Assert.assertSame(cache.toUserIndexName("tenant99"), cache.toUserIndexName("tenant99"));
+    }
+
+    @Test
+    public void testIsTenantIndexName() throws Exception {
+        Assert.assertTrue(TenantIndexNameCache.isTenantIndexName(".kibana", TenantIndexNameCache.compute(".kibana", "hr")));
+        Assert.assertTrue(TenantIndexNameCache.isTenantIndexName(".kibana", TenantIndexNameCache.compute(".kibana", "Human Resources")));
+        Assert.assertFalse(TenantIndexNameCache.isTenantIndexName(".kibana", ".kibana"));
+        Assert.assertFalse(TenantIndexNameCache.isTenantIndexName(".kibana", ".kibana-tenants"));
+        Assert.assertFalse(TenantIndexNameCache.isTenantIndexName(".kibana", ".kibana_backup"));
+        Assert.assertFalse(TenantIndexNameCache.isTenantIndexName(".kibana", ".kibana_-_x"));
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.common.regex.Regex;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TenantIndexProvisionerTest {
+
+    @Test
+    public void testTemplatePatternsOnlyMatchTenantIndices() throws Exception {
+        final String[] patterns = TenantIndexProvisioner.templatePatterns(".kibana").toArray(new String[0]);
+
+        for (String tenant : new String[] { "human_resources", "Business Intelligence", "__user__", "kirk", "123_ABC" }) {
+            final String indexName = TenantIndexNameCache.compute(".kibana", tenant);
+            Assert.assertTrue(indexName, TenantIndexNameCache.isTenantIndexName(".kibana", indexName));
+            Assert.assertTrue(indexName, Regex.simpleMatch(patterns, indexName));
+        }
+
+        for (String indexName : new String[] { ".kibana", ".kibana_1", ".kibana_task_manager", ".kibana-6", ".kibana_-" }) {
+            Assert.assertFalse(indexName, TenantIndexNameCache.isTenantIndexName(".kibana", indexName));
+            Assert.assertFalse(indexName, Regex.simpleMatch(patterns, indexName));
+        }
+    }
+}
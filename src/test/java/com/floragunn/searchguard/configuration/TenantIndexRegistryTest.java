@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TenantIndexRegistryTest {
+
+    @Test
+    public void testTracksTenantIndices() throws Exception {
+        final String hr = TenantIndexNameCache.compute(".kibana", "hr");
+        final String finance = TenantIndexNameCache.compute(".kibana", "finance");
+        final TenantIndexRegistry registry = new TenantIndexRegistry();
+
+        //nothing is known before the registry is configured
+        Assert.assertTrue(registry.exists(finance));
+
+        final ClusterState state = ClusterStates.of(1, ".kibana", hr, "logs-1");
+        registry.configure(".kibana", state);
+        Assert.assertEquals(1, registry.size());
+        Assert.assertTrue(registry.exists(hr));
+        Assert.assertFalse(registry.exists(finance));
+        Assert.assertTrue(registry.exists("logs-2"));
+        Assert.assertEquals(IndexMetaData.State.OPEN, registry.state(hr));
+
+        registry.clusterChanged(new ClusterChangedEvent("test", ClusterStates.of(2, ".kibana", hr, finance), state));
+        Assert.assertTrue(registry.exists(finance));
+        Assert.assertEquals(2, registry.size());
+    }
+}
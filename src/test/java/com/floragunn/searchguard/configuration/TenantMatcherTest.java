@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TenantMatcherTest {
+
+    @Test
+    public void testPatterns() throws Exception {
+        final Map<String, Boolean> tenants = new HashMap<>();
+        tenants.put("finance", Boolean.TRUE);
+        tenants.put("team_*", Boolean.FALSE);
+        tenants.put("team_admin?", Boolean.TRUE);
+        tenants.put("/project_[0-9]+/", Boolean.TRUE);
+
+        final TenantMatcher.Cache cache = new TenantMatcher.Cache(10);
+        final TenantMatcher matcher = cache.get(tenants);
+
+        Assert.assertEquals(Boolean.FALSE, matcher.get("team_blue"));
+        Assert.assertEquals(Boolean.TRUE, matcher.get("team_admin1"));
+        Assert.assertEquals(Boolean.TRUE, matcher.get("project_42"));
+        Assert.assertNull(matcher.get("project_x"));
+        Assert.assertNull(matcher.get("finance"));
+        Assert.assertNull(matcher.get("human_resources"));
+    }
+
+    @Test
+    public void testMemoized() throws Exception {
+        final TenantMatcher.Cache cache = new TenantMatcher.Cache(1);
+        final Map<String, Boolean> tenants = new HashMap<>();
+        tenants.put("finance", Boolean.TRUE);
+        Assert.assertNull(cache.get(tenants));
+
+        tenants.put("team_*", Boolean.TRUE);
+        final TenantMatcher matcher = cache.get(tenants);
+        tenants.put("management", Boolean.FALSE);
+        Assert.assertSame(matcher, cache.get(new HashMap<>(tenants)));
+
+        tenants.put("ops_*", Boolean.TRUE);
+        Assert.assertNotSame(matcher, cache.get(tenants));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testLastMatcherOfUser() throws Exception {
+        final TenantMatcher.Cache cache = new TenantMatcher.Cache(10);
+        final Map<String, Boolean> tenants = new HashMap<>();
+        tenants.put("finance", Boolean.TRUE);
+        tenants.put("team_*", Boolean.FALSE);
+
+        Assert.assertEquals(Boolean.FALSE, cache.grant("bob", tenants, "team_blue", false));
+        Assert.assertTrue(cache.get(tenants).isCompiledFrom(new HashMap<>(tenants)));
+
+        //an additional pattern is not detected by the last matcher but read-only is not enough for a write
+        tenants.put("team_b*", Boolean.TRUE);
+        Assert.assertTrue(cache.get(Collections.singletonMap("team_*", Boolean.FALSE)).isCompiledFrom(tenants));
+        Assert.assertEquals(Boolean.TRUE, cache.grant("bob", tenants, "team_blue", true));
+
+        //a removed or downgraded pattern invalidates the last matcher
+        tenants.remove("team_b*");
+        Assert.assertEquals(Boolean.FALSE, cache.grant("bob", tenants, "team_blue", true));
+        tenants.put("team_*", Boolean.TRUE);
+        Assert.assertEquals(Boolean.TRUE, cache.grant("bob", tenants, "team_blue", true));
+        tenants.remove("team_*");
+        Assert.assertNull(cache.grant("bob", tenants, "team_blue", false));
+    }
+
+    @Test
+    public void testPatternsNeverGrantPrivateTenants() throws Exception {
+        final MultitenancyConfig config = MultitenancyConfig.of(Settings.EMPTY);
+        final Map<String, Boolean> tenants = new HashMap<>();
+        tenants.put("bob", Boolean.TRUE);
+        tenants.put("*", Boolean.TRUE);
+        tenants.put("/.*/", Boolean.TRUE);
+        tenants.put("__user__alice", Boolean.TRUE);
+
+        //private tenants have their own index namespace, a tenant named like a user is a regular tenant
+        Assert.assertNotEquals(config.toUserIndexName("alice"), config.toPrivateIndexName("alice"));
+        Assert.assertEquals(config.toUserIndexName("__user__alice"), config.toPrivateIndexName("alice"));
+        Assert.assertTrue(TenantIndexNameCache.isTenantIndexName(".kibana", config.toPrivateIndexName("alice")));
+
+        Assert.assertEquals(Boolean.TRUE, PrivilegesInterceptorImpl.patternTenantGrant("indices:data/read/get", config, tenants, "bob", "alice", null));
+        Assert.assertEquals(Boolean.TRUE, PrivilegesInterceptorImpl.patternTenantGrant("indices:data/read/get", config, tenants, "bob", "team", null));
+        //names in the namespace of the private tenants are neither granted by patterns nor explicitly
+        Assert.assertNull(PrivilegesInterceptorImpl.patternTenantGrant("indices:data/read/get", config, tenants, "bob", "__user__alice", null));
+        Assert.assertNull(PrivilegesInterceptorImpl.patternTenantGrant("indices:data/read/get", config, tenants, "bob", "__user__alice", Boolean.TRUE));
+        Assert.assertNull(PrivilegesInterceptorImpl.patternTenantGrant("indices:data/write/index", config, tenants, "bob", "__user__alice", Boolean.TRUE));
+    }
+}
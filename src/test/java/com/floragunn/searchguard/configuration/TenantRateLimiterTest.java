@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TenantRateLimiterTest {
+
+    @Test
+    public void testBurstPerTenant() throws Exception {
+        //10 writes per second with a burst of 5 writes, reads are unlimited
+        final TenantRateLimiter limiter = new TenantRateLimiter(0, 10, 0, 0, 0.5);
+        Assert.assertTrue(limiter.isEnabled());
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(limiter.tryAcquire("hr", "user" + i, true));
+        }
+
+        Assert.assertFalse(limiter.tryAcquire("hr", "user5", true));
+        Assert.assertTrue(limiter.tryAcquire("finance", "user5", true));
+        Assert.assertTrue(limiter.tryAcquire("hr", "user5", false));
+
+        Thread.sleep(250);
+        Assert.assertTrue(limiter.tryAcquire("hr", "user5", true));
+    }
+
+    @Test
+    public void testPerUser() throws Exception {
+        final TenantRateLimiter limiter = new TenantRateLimiter(0, 0, 1, 0, 1);
+        Assert.assertTrue(limiter.tryAcquire("hr", "jdoe", false));
+        Assert.assertFalse(limiter.tryAcquire("finance", "jdoe", false));
+        Assert.assertTrue(limiter.tryAcquire("hr", "admin", false));
+    }
+
+    @Test
+    public void testThrottledUserKeepsTenantTokens() throws Exception {
+        //tenant allows 2 reads at once, each user 1
+        final TenantRateLimiter limiter = new TenantRateLimiter(2, 0, 1, 0, 1);
+        Assert.assertTrue(limiter.tryAcquire("hr", "jdoe", false));
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertFalse(limiter.tryAcquire("hr", "jdoe", false));
+        }
+
+        Assert.assertTrue(limiter.tryAcquire("hr", "admin", false));
+        //the user token is given back if the tenant is exhausted
+        Assert.assertFalse(limiter.tryAcquire("hr", "guest", false));
+        Assert.assertTrue(limiter.tryAcquire("finance", "guest", false));
+    }
+
+    @Test
+    public void testBucketsSurviveConfigChanges() throws Exception {
+        final Settings settings = Settings.builder().put("searchguard.dynamic.kibana.rate_limit.user_writes_per_second", 1).build();
+        final TenantRateLimiter limiter = new TenantRateLimiter();
+        limiter.configure(MultitenancyConfig.of(settings));
+        Assert.assertTrue(limiter.tryAcquire("hr", "jdoe", true));
+        Assert.assertFalse(limiter.tryAcquire("hr", "jdoe", true));
+
+        limiter.configure(MultitenancyConfig.of(Settings.builder().put(settings).put("searchguard.dynamic.kibana.index", ".kibana-6").build()));
+        Assert.assertFalse(limiter.tryAcquire("hr", "jdoe", true));
+
+        limiter.configure(MultitenancyConfig.of(Settings.EMPTY));
+        Assert.assertFalse(limiter.isEnabled());
+        Assert.assertTrue(limiter.tryAcquire("hr", "jdoe", true));
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        Assert.assertFalse(MultitenancyConfig.of(Settings.EMPTY).isRateLimited());
+        Assert.assertTrue(MultitenancyConfig.of(Settings.builder()
+                .put("searchguard.dynamic.kibana.rate_limit.user_writes_per_second", 50).build()).isRateLimited());
+    }
+}
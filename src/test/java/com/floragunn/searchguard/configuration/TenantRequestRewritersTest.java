@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.configuration;
+
+import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.configuration.TenantRequestRewriters.ReplaceResult;
+
+public class TenantRequestRewritersTest {
+
+    private final TenantRequestRewriters rewriters = TenantRequestRewriters.load(TenantRequestRewritersTest.class.getClassLoader());
+
+    @Test
+    public void testReplaceIndex() throws Exception {
+        final IndexRequest ir = new IndexRequest(".kibana", "config", "5.6.0");
+        Assert.assertEquals(ReplaceResult.REPLACED, rewriters.replaceIndex(ir, ".kibana", ".kibana_1_tenant"));
+        Assert.assertEquals(".kibana_1_tenant", ir.index());
+
+        final BulkRequest br = new BulkRequest();
+        br.add(new IndexRequest(".kibana", "doc", "1"));
+        br.add(new DeleteRequest(".kibana", "doc", "2"));
+        Assert.assertEquals(ReplaceResult.REPLACED, rewriters.replaceIndex(br, ".kibana", ".kibana_1_tenant"));
+        Assert.assertEquals(".kibana_1_tenant", br.requests().get(0).index());
+        Assert.assertEquals(".kibana_1_tenant", br.requests().get(1).index());
+
+        //bulk requests are only rewritten if all items target the kibana index
+        final BulkRequest mixed = new BulkRequest();
+        mixed.add(new IndexRequest(".kibana", "doc", "1"));
+        mixed.add(new UpdateRequest(".kibana", "doc", "2"));
+        mixed.add(new DeleteRequest("logs", "doc", "3"));
+        Assert.assertEquals(ReplaceResult.REJECTED, rewriters.replaceIndex(mixed, ".kibana", ".kibana_1_tenant"));
+        Assert.assertEquals(".kibana", mixed.requests().get(0).index());
+        Assert.assertEquals(".kibana", mixed.requests().get(1).index());
+        Assert.assertEquals("logs", mixed.requests().get(2).index());
+
+        final MultiSearchRequest msr = new MultiSearchRequest();
+        msr.add(new SearchRequest(".kibana"));
+        Assert.assertEquals(ReplaceResult.REPLACED, rewriters.replaceIndex(msr, ".kibana", ".kibana_1_tenant"));
+        Assert.assertArrayEquals(new String[] { ".kibana_1_tenant" }, msr.requests().get(0).indices());
+
+        final MultiGetRequest mgr = new MultiGetRequest();
+        mgr.add(".kibana", "doc", "1");
+        Assert.assertEquals(ReplaceResult.REPLACED, rewriters.replaceIndex(mgr, ".kibana", ".kibana_1_tenant"));
+        Assert.assertEquals(".kibana_1_tenant", mgr.getItems().get(0).index());
+
+        //field mappings must not be rewritten
+        final GetFieldMappingsRequest fmr = new GetFieldMappingsRequest().indices(".kibana");
+        Assert.assertEquals(ReplaceResult.REPLACED, rewriters.replaceIndex(fmr, ".kibana", ".kibana_1_tenant"));
+        Assert.assertArrayEquals(new String[] { ".kibana" }, fmr.indices());
+    }
+
+    @Test
+    public void testReplaceSubRequests() throws Exception {
+        final MultiSearchRequest msr = new MultiSearchRequest();
+        msr.add(new SearchRequest(".kibana"));
+        msr.add(new SearchRequest("logs"));
+        msr.add(new SearchRequest(".kibana"));
+        Assert.assertEquals(2, TenantRequestRewriters.replaceSubRequests(msr, ".kibana", ".kibana_1_tenant"));
+        Assert.assertArrayEquals(new String[] { ".kibana_1_tenant" }, msr.requests().get(0).indices());
+        Assert.assertArrayEquals(new String[] { "logs" }, msr.requests().get(1).indices());
+        Assert.assertArrayEquals(new String[] { ".kibana_1_tenant" }, msr.requests().get(2).indices());
+
+        final MultiGetRequest mgr = new MultiGetRequest();
+        mgr.add("logs", "doc", "1");
+        mgr.add(".kibana", "doc", "config:6.1.0");
+        Assert.assertEquals(1, TenantRequestRewriters.replaceSubRequests(mgr, ".kibana", ".kibana_1_tenant"));
+        Assert.assertEquals("logs", mgr.getItems().get(0).index());
+        Assert.assertEquals(".kibana_1_tenant", mgr.getItems().get(1).index());
+
+        //a search of the kibana index together with other indices can not be confined to the tenant
+        final MultiSearchRequest both = new MultiSearchRequest();
+        both.add(new SearchRequest(".kibana"));
+        both.add(new SearchRequest(".kibana", "logs"));
+        Assert.assertEquals(-1, TenantRequestRewriters.replaceSubRequests(both, ".kibana", ".kibana_1_tenant"));
+        Assert.assertArrayEquals(new String[] { ".kibana" }, both.requests().get(0).indices());
+    }
+
+    @Test
+    public void testReduceIndices() throws Exception {
+        final GetRequest gr = new GetRequest("logs*", "doc", "1");
+        Assert.assertTrue(rewriters.reduceIndices(gr, indices -> new String[] { "logs-1" }));
+        Assert.assertEquals("logs-1", gr.index());
+        Assert.assertFalse(rewriters.reduceIndices(gr, indices -> null));
+
+        final SearchRequest sr = new SearchRequest("logs*");
+        Assert.assertTrue(rewriters.reduceIndices(sr, indices -> new String[] { "logs-1", "logs-2" }));
+        Assert.assertArrayEquals(new String[] { "logs-1", "logs-2" }, sr.indices());
+    }
+
+    @Test
+    public void testUnhandledAndCustomRewriters() throws Exception {
+        Assert.assertEquals(ReplaceResult.UNHANDLED, rewriters.replaceIndex("not a request", ".kibana", ".kibana_1_tenant"));
+        Assert.assertEquals(ReplaceResult.UNHANDLED, rewriters.replaceIndex("not a request", ".kibana", ".kibana_1_tenant"));
+        Assert.assertEquals(Long.valueOf(2), rewriters.getUnhandledRequestCounts().get(String.class.getName()));
+
+        final StringBuilder sb = new StringBuilder();
+        final TenantRequestRewriters custom = TenantRequestRewriters.builder()
+                .replacer(StringBuilder.class, (request, oldIndexName, newIndexName) -> request.append(newIndexName).length() > 0)
+                .build();
+        Assert.assertEquals(ReplaceResult.REPLACED, custom.replaceIndex(sb, ".kibana", ".kibana_1_tenant"));
+        Assert.assertEquals(".kibana_1_tenant", sb.toString());
+    }
+}
@@ -14,6 +14,10 @@
 
 package com.floragunn.searchguard.multitenancy.test;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
 import org.apache.http.HttpStatus;
 import org.apache.http.message.BasicHeader;
 import org.elasticsearch.common.settings.Settings;
@@ -21,6 +25,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.floragunn.searchguard.support.WildcardMatcher;
+import com.floragunn.searchguard.test.DynamicSgConfig;
 import com.floragunn.searchguard.test.SingleClusterTest;
 import com.floragunn.searchguard.test.helper.rest.RestHelper;
 import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
@@ -52,4 +57,64 @@ public class MultitenancyTests extends SingleClusterTest {
         
     }
 
+    @Test
+    public void testSharedTenantIndexIds() throws Exception {
+        setup(Settings.EMPTY, new DynamicSgConfig().setSgConfig("sg_config_shared.yml"), Settings.EMPTY);
+        final RestHelper rh = nonSslRestHelper();
+        final BasicHeader hr = new BasicHeader("sgtenant", "human_resources");
+
+        HttpResponse res = rh.executePutRequest(".kibana/doc/visualization:1?refresh=true", "{\"type\":\"visualization\",\"visualization\":{\"title\":\"salaries\"}}",
+                hr, encodeBasicHeader("hr_employee", "hr_employee"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_CREATED, res.getStatusCode());
+
+        res = rh.executeGetRequest(".kibana/_search?q=type:visualization", hr, encodeBasicHeader("hr_employee", "hr_employee"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_OK, res.getStatusCode());
+        final Matcher hitId = Pattern.compile("\"_id\":\"visualization:([^\"]+)\"").matcher(res.getBody());
+        Assert.assertTrue(res.getBody(), hitId.find());
+
+        //kibana strips the type of the hit id to get the saved object id and prepends it again for the next request
+        final String id = "visualization:" + hitId.group(1);
+
+        res = rh.executePostRequest(".kibana/doc/" + id + "/_update?refresh=true", "{\"doc\":{\"visualization\":{\"title\":\"wages\"}}}",
+                hr, encodeBasicHeader("hr_employee", "hr_employee"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_OK, res.getStatusCode());
+
+        res = rh.executeGetRequest(".kibana/doc/" + id, hr, encodeBasicHeader("hr_employee", "hr_employee"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_OK, res.getStatusCode());
+        Assert.assertTrue(res.getBody(), res.getBody().contains("wages"));
+
+        //the same id of another tenant does not reach the document
+        res = rh.executeGetRequest(".kibana/doc/" + id, new BasicHeader("sgtenant", "performance_data"), encodeBasicHeader("hr_employee", "hr_employee"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_NOT_FOUND, res.getStatusCode());
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        setup(Settings.EMPTY, new DynamicSgConfig().setSgConfig("sg_config_rate_limit.yml"), Settings.EMPTY);
+        final RestHelper rh = nonSslRestHelper();
+        final BasicHeader hr = new BasicHeader("sgtenant", "human_resources");
+
+        HttpResponse res = rh.executeGetRequest(".kibana/config/5.6.0", hr, encodeBasicHeader("hr_employee", "hr_employee"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_NOT_FOUND, res.getStatusCode());
+        Assert.assertNull(retryAfter(res));
+
+        //exceptions of the interceptor become internal server errors, so a throttled request is denied with a retry hint
+        res = rh.executeGetRequest(".kibana/config/5.6.0", hr, encodeBasicHeader("hr_employee", "hr_employee"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_FORBIDDEN, res.getStatusCode());
+        Assert.assertEquals("1", retryAfter(res));
+
+        Thread.sleep(1100);
+        res = rh.executeGetRequest(".kibana/config/5.6.0", hr, encodeBasicHeader("hr_employee", "hr_employee"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_NOT_FOUND, res.getStatusCode());
+    }
+
+    private static String retryAfter(final HttpResponse res) {
+        for (Header header : res.getHeaders()) {
+            if ("Retry-After".equalsIgnoreCase(header.getName())) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.multitenancy.test;
+
+import org.apache.http.HttpStatus;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+import com.floragunn.searchguard.test.DynamicSgConfig;
+import com.floragunn.searchguard.test.SingleClusterTest;
+import com.floragunn.searchguard.test.helper.rest.RestHelper;
+import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
+
+public class TenantIndexMigrationTests extends SingleClusterTest {
+
+    private static final String SOURCE = ".kibana-5_-152937574_humanresources";
+    private static final String TARGET = ".kibana_-152937574_humanresources";
+
+    @Test
+    public void testMigrateTenantIndex() throws Exception {
+        //the migration job runs every second, so it is only configured for this test
+        setup(Settings.EMPTY, new DynamicSgConfig().setSgConfig("sg_config_migration.yml"), Settings.EMPTY);
+        final RestHelper rh = nonSslRestHelper();
+        final StringBuilder bulk = new StringBuilder();
+
+        for (int i = 0; i < 55; i++) {
+            bulk.append("{\"index\":{\"_index\":\"" + SOURCE + "\",\"_type\":\"doc\",\"_id\":\"visualization:" + i + "\"}}\n");
+            bulk.append("{\"type\":\"visualization\",\"visualization\":{\"title\":\"panel " + i + "\"}}\n");
+        }
+
+        HttpResponse res = rh.executePostRequest("_bulk?refresh=true", bulk.toString(), encodeBasicHeader("admin", "admin"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_OK, res.getStatusCode());
+
+        //the job runs every second on the master, the old name is swapped for an alias when the copy is complete
+        final long timeout = System.currentTimeMillis() + 60_000;
+
+        do {
+            Thread.sleep(500);
+            res = rh.executeGetRequest("_alias/" + SOURCE, encodeBasicHeader("admin", "admin"));
+        } while (res.getStatusCode() != HttpStatus.SC_OK && System.currentTimeMillis() < timeout);
+
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_OK, res.getStatusCode());
+        Assert.assertTrue(res.getBody(), res.getBody().contains("\"" + TARGET + "\""));
+
+        rh.executePostRequest(TARGET + "/_refresh", "", encodeBasicHeader("admin", "admin"));
+        res = rh.executeGetRequest(TARGET + "/_count", encodeBasicHeader("admin", "admin"));
+        Assert.assertTrue(res.getBody(), res.getBody().contains("\"count\":55"));
+
+        res = rh.executeGetRequest(".searchguard_tenant_migration/checkpoint/" + SOURCE + "?pretty", encodeBasicHeader("admin", "admin"));
+        Assert.assertEquals(res.getBody(), HttpStatus.SC_OK, res.getStatusCode());
+        Assert.assertTrue(res.getBody(), WildcardMatcher.match("*\"status\" : \"done\"*", res.getBody()));
+    }
+}